@@ -0,0 +1,115 @@
+package sample.keycloak;
+
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Argon2 (argon2id / argon2i / argon2d) のパスワードハッシュ
+ * 形式: $argon2id$v=19$m=65536,t=3,p=4$ソルト(Base64)$ハッシュ(Base64)
+ */
+public class Argon2PasswordHash implements PasswordHashAlgorithm {
+
+    /**
+     * 方式の識別子を返します
+     *
+     * @return 方式の識別子
+     */
+    @Override
+    public String getId() {
+        return "argon2";
+    }
+
+    /**
+     * ハッシュ文字列がこの方式のものかを判定します
+     *
+     * @param encoded ハッシュ文字列
+     * @return true:この方式で検証できる<br>false:検証できない
+     */
+    @Override
+    public boolean supports(String encoded) {
+        return encoded.startsWith("$argon2");
+    }
+
+    /**
+     * パスワードがハッシュ文字列と一致するかを検証します
+     *
+     * @param password パスワード
+     * @param encoded  ハッシュ文字列
+     * @return true:一致する<br>false:一致しない
+     */
+    @Override
+    public boolean verify(char[] password, String encoded) {
+        String[] parts = encoded.split("\\$");
+        if (parts.length != 6) {
+            return false;
+        }
+        try {
+            int type;
+            switch (parts[1]) {
+                case "argon2id":
+                    type = Argon2Parameters.ARGON2_id;
+                    break;
+                case "argon2i":
+                    type = Argon2Parameters.ARGON2_i;
+                    break;
+                case "argon2d":
+                    type = Argon2Parameters.ARGON2_d;
+                    break;
+                default:
+                    return false;
+            }
+            int version = Integer.parseInt(parts[2].substring("v=".length()));
+            int memory = 0;
+            int iterations = 0;
+            int parallelism = 0;
+            for (String param : parts[3].split(",")) {
+                int value = Integer.parseInt(param.substring(2));
+                if (param.startsWith("m=")) {
+                    memory = value;
+                } else if (param.startsWith("t=")) {
+                    iterations = value;
+                } else if (param.startsWith("p=")) {
+                    parallelism = value;
+                }
+            }
+            byte[] salt = Base64.getDecoder().decode(parts[4]);
+            byte[] expected = Base64.getDecoder().decode(parts[5]);
+            Argon2BytesGenerator generator = new Argon2BytesGenerator();
+            generator.init(new Argon2Parameters.Builder(type)
+                    .withVersion(version)
+                    .withMemoryAsKB(memory)
+                    .withIterations(iterations)
+                    .withParallelism(parallelism)
+                    .withSalt(salt)
+                    .build());
+            byte[] actual = new byte[expected.length];
+            generator.generateBytes(password, actual);
+            return MessageDigest.isEqual(expected, actual);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 検証に必要なメモリ量(KiB)を返します
+     *
+     * @param encoded ハッシュ文字列
+     * @return ハッシュ文字列の m パラメータ(KiB)
+     */
+    @Override
+    public long memoryCost(String encoded) {
+        int start = encoded.indexOf("m=");
+        if (start < 0) {
+            return 0L;
+        }
+        int end = encoded.indexOf(',', start);
+        try {
+            return Long.parseLong(encoded.substring(start + 2, end < 0 ? encoded.length() : end));
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package sample.keycloak;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 必要になった時点で読み込む属性のグループ
+ * 属性をグループ(例: profile, contact, claims)に分け、グループごとのSQLで読み込みます
+ * ユーザ検索では属性を取得せず、属性が参照されたときに、その属性を含むグループだけを問い合わせます
+ * <pre>
+ * {"contact": {"attributes": ["phone", "mobile"],
+ *              "sql": "select phone, mobile from contacts where username = ${username}"}}
+ * </pre>
+ */
+public final class AttributeGroups {
+
+    /** ユーザ名を格納するキー */
+    public static final String KEY_USERNAME = "username";
+    // 設定JSONの型
+    private static final TypeReference<LinkedHashMap<String, Map<String, Object>>> CONFIG_TYPE =
+            new TypeReference<LinkedHashMap<String, Map<String, Object>>>() {
+            };
+    // グループ(設定順)
+    private final List<Group> groups;
+    // 属性名ごとのグループ
+    private final Map<String, Group> byAttribute;
+
+    /**
+     * コンストラクタ
+     *
+     * @param groups グループ(設定順)
+     */
+    private AttributeGroups(List<Group> groups) {
+        this.groups = Collections.unmodifiableList(groups);
+        Map<String, Group> byAttribute = new HashMap<>();
+        for (Group group : groups) {
+            group.getAttributes().forEach(name -> byAttribute.putIfAbsent(name, group));
+        }
+        this.byAttribute = byAttribute;
+    }
+
+    /**
+     * 設定のJSONを解析します
+     *
+     * @param json 設定のJSON(グループ名 → {"attributes": [...], "sql": "..."})
+     * @return 属性のグループ
+     * @throws IllegalArgumentException 設定内容に問題があった場合の例外
+     */
+    public static AttributeGroups parse(String json) {
+        LinkedHashMap<String, Map<String, Object>> config;
+        try {
+            config = JsonSerialization.mapper.readValue(json, CONFIG_TYPE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid attribute groups JSON", e);
+        }
+        List<Group> groups = new ArrayList<>();
+        config.forEach((name, value) -> {
+            Object sql = value == null ? null : value.get("sql");
+            if (!(sql instanceof String) || ((String) sql).isBlank()) {
+                throw new IllegalArgumentException("sql of attribute group '" + name + "' is required");
+            }
+            NamedSql compiled = NamedSql.compile((String) sql);
+            if (!compiled.getParameterNames().contains(KEY_USERNAME)) {
+                throw new IllegalArgumentException(
+                        "sql of attribute group '" + name + "' must contain ${username}");
+            }
+            Set<String> attributes = new LinkedHashSet<>();
+            Object declared = value.get("attributes");
+            if (declared instanceof Collection) {
+                ((Collection<?>) declared).forEach(a -> attributes.add(String.valueOf(a)));
+            } else if (declared != null) {
+                throw new IllegalArgumentException(
+                        "attributes of attribute group '" + name + "' must be an array");
+            }
+            groups.add(new Group(name, attributes, compiled));
+        });
+        return new AttributeGroups(groups);
+    }
+
+    /**
+     * 属性を含むグループを返します
+     *
+     * @param attribute 属性名
+     * @return グループ(どのグループにも含まれない場合はnull)
+     */
+    public Group groupOf(String attribute) {
+        return byAttribute.get(attribute);
+    }
+
+    /**
+     * 全グループを返します(全属性を参照する場合に使用)
+     *
+     * @return グループ(設定順)
+     */
+    public List<Group> getGroups() {
+        return groups;
+    }
+
+    /**
+     * 属性のグループ
+     */
+    public static final class Group {
+
+        // グループ名
+        private final String name;
+        // グループに含まれる属性名
+        private final Set<String> attributes;
+        // 属性を読み込むSQL
+        private final NamedSql sql;
+
+        /**
+         * コンストラクタ
+         *
+         * @param name       グループ名
+         * @param attributes グループに含まれる属性名
+         * @param sql        属性を読み込むSQL
+         */
+        Group(String name, Set<String> attributes, NamedSql sql) {
+            this.name = name;
+            this.attributes = Collections.unmodifiableSet(attributes);
+            this.sql = sql;
+        }
+
+        /**
+         * グループ名を返します
+         *
+         * @return グループ名
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * グループに含まれる属性名を返します
+         *
+         * @return 属性名
+         */
+        public Set<String> getAttributes() {
+            return attributes;
+        }
+
+        /**
+         * ユーザの属性を読み込みます
+         * 列名を属性名とし、複数行の場合は複数値として扱います
+         * attributes 列(JSONオブジェクト)はログイン用SQLと同じ形式で展開します
+         *
+         * @param connection SQLコネクション
+         * @param username   ユーザ名
+         * @return 属性(ユーザが見つからない場合は空)
+         * @throws SQLException SQL例外
+         */
+        public Map<String, List<String>> load(Connection connection, String username) throws SQLException {
+            Map<String, List<String>> values = new LinkedHashMap<>();
+            try (PreparedStatement ps = sql.prepare(connection, Collections.singletonMap(KEY_USERNAME, username));
+                 ResultSet rs = ps.executeQuery()) {
+                ResultSetMetaData meta = rs.getMetaData();
+                while (rs.next()) {
+                    for (int i = 1; i <= meta.getColumnCount(); i++) {
+                        String column = meta.getColumnLabel(i);
+                        if (UserRecord.COLUMN_USERNAME.equalsIgnoreCase(column)) {
+                            continue;
+                        }
+                        if (UserRecord.COLUMN_ATTRIBUTES.equalsIgnoreCase(column)) {
+                            UserRecord.parseAttributes(rs.getString(i)).forEach((k, v) ->
+                                    values.computeIfAbsent(k, key -> new ArrayList<>()).addAll(v));
+                            continue;
+                        }
+                        String value = rs.getString(i);
+                        if (value != null) {
+                            values.computeIfAbsent(column, key -> new ArrayList<>()).add(value);
+                        }
+                    }
+                }
+            }
+            values.replaceAll((k, v) -> Collections.unmodifiableList(v));
+            return values;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package sample.keycloak;
+
+import org.bouncycastle.crypto.generators.OpenBSDBCrypt;
+
+/**
+ * bcrypt ($2a$, $2b$, $2y$) のパスワードハッシュ
+ */
+public class BCryptPasswordHash implements PasswordHashAlgorithm {
+
+    /**
+     * 方式の識別子を返します
+     *
+     * @return 方式の識別子
+     */
+    @Override
+    public String getId() {
+        return "bcrypt";
+    }
+
+    /**
+     * ハッシュ文字列がこの方式のものかを判定します
+     *
+     * @param encoded ハッシュ文字列
+     * @return true:この方式で検証できる<br>false:検証できない
+     */
+    @Override
+    public boolean supports(String encoded) {
+        return encoded.startsWith("$2a$") || encoded.startsWith("$2b$") || encoded.startsWith("$2y$");
+    }
+
+    /**
+     * パスワードがハッシュ文字列と一致するかを検証します
+     *
+     * @param password パスワード
+     * @param encoded  ハッシュ文字列
+     * @return true:一致する<br>false:一致しない
+     */
+    @Override
+    public boolean verify(char[] password, String encoded) {
+        try {
+            return OpenBSDBCrypt.checkPassword(encoded, password);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package sample.keycloak;
+
+import org.jboss.logging.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * 異なるユーザ名の検索を短い時間窓でまとめ、1回の問い合わせで取得します
+ * 時間窓の最初の呼び出し元が窓の終了(または件数上限)まで待ち、まとめて問い合わせた結果を各呼び出し元に配ります
+ */
+public class BatchUserLoader {
+
+    // ロガー
+    private static final Logger LOG = Logger.getLogger(BatchUserLoader.class);
+    /** ユーザ名の一覧を格納するキー */
+    public static final String KEY_USERNAMES = "usernames";
+    // ユーザ名の一覧から検索するSQL
+    private final NamedSql sql;
+    // 時間窓(ミリ秒)
+    private final long windowMillis;
+    // 1回にまとめる最大件数
+    private final int maxSize;
+    // 受付中のバッチを保護するロック
+    private final Object lock = new Object();
+    // 受付中のバッチ
+    private List<Request> pending = new ArrayList<>();
+
+    /**
+     * コンストラクタ
+     *
+     * @param sql          ユーザ名の一覧から検索するSQL(${usernames}に配列がバインドされます)
+     * @param windowMillis 時間窓(ミリ秒)
+     * @param maxSize      1回にまとめる最大件数
+     */
+    public BatchUserLoader(NamedSql sql, long windowMillis, int maxSize) {
+        this.sql = sql;
+        this.windowMillis = Math.max(1L, windowMillis);
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    /**
+     * ユーザ情報を検索します
+     * 他の呼び出し元の検索とまとめて問い合わせるため、最大で時間窓の分だけ待ちます
+     *
+     * @param store    コネクションを借り受けるデータベース資源
+     * @param username ユーザ名
+     * @return ユーザ情報(見つからなければnull)
+     */
+    public UserRecord load(DatabaseUserStore store, String username) {
+        Request request = new Request(username);
+        List<Request> batch = null;
+        List<Request> opened;
+        boolean leader;
+        synchronized (lock) {
+            opened = pending;
+            leader = opened.isEmpty();
+            opened.add(request);
+            if (opened.size() >= maxSize) {
+                batch = opened;
+                pending = new ArrayList<>();
+                lock.notifyAll();
+            }
+        }
+        if (batch == null && leader) {
+            batch = awaitWindow(opened);
+        }
+        if (batch != null) {
+            execute(store, batch);
+        }
+        try {
+            return request.result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * バッチを開いた呼び出し元が時間窓の終了まで待ちます
+     *
+     * @param opened 開いたバッチ
+     * @return 自分で問い合わせるバッチ(件数上限で他の呼び出し元が問い合わせた場合はnull)
+     */
+    private List<Request> awaitWindow(List<Request> opened) {
+        long deadline = System.nanoTime() + windowMillis * 1_000_000L;
+        synchronized (lock) {
+            try {
+                long remaining;
+                while (pending == opened && (remaining = deadline - System.nanoTime()) > 0) {
+                    lock.wait(Math.max(1L, remaining / 1_000_000L));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (pending != opened) {
+                return null;
+            }
+            pending = new ArrayList<>();
+            return opened;
+        }
+    }
+
+    /**
+     * まとめた検索を1回の問い合わせで実行し、結果を各呼び出し元に配ります
+     *
+     * @param store コネクションを借り受けるデータベース資源
+     * @param batch まとめた検索
+     */
+    private void execute(DatabaseUserStore store, List<Request> batch) {
+        Set<String> usernames = new LinkedHashSet<>();
+        batch.forEach(request -> usernames.add(request.username));
+        try (Connection connection = store.getConnection();
+             PreparedStatement ps = sql.prepare(connection,
+                     Collections.singletonMap(KEY_USERNAMES, usernames));
+             ResultSet rs = ps.executeQuery()) {
+            // 外部DBのユーザ名の照合は大文字小文字を区別しないことがあるため、小文字で突き合わせる
+            Map<String, UserRecord> found = new HashMap<>();
+            while (rs.next()) {
+                UserRecord record = UserRecord.from(rs);
+                if (record != null) {
+                    found.put(record.getUsername().toLowerCase(Locale.ROOT), record);
+                }
+            }
+            LOG.tracev("Batch lookup: requested={0}, found={1}", usernames.size(), found.size());
+            batch.forEach(request -> request.result.complete(
+                    found.get(request.username.toLowerCase(Locale.ROOT))));
+        } catch (SQLException | RuntimeException e) {
+            batch.forEach(request -> request.result.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * まとめられる個々の検索
+     */
+    private static final class Request {
+
+        // ユーザ名
+        private final String username;
+        // 検索結果
+        private final CompletableFuture<UserRecord> result = new CompletableFuture<>();
+
+        /**
+         * コンストラクタ
+         *
+         * @param username ユーザ名
+         */
+        private Request(String username) {
+            this.username = username;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package sample.keycloak;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ユーザ名の存在判定に使うブルームフィルタ
+ * 「存在しない」と判定した場合は確実に存在しませんが、「存在するかもしれない」には誤判定を含みます
+ */
+public final class BloomFilter {
+
+    // ビット配列
+    private final long[] bits;
+    // ビット数
+    private final long bitSize;
+    // ハッシュ関数の数
+    private final int hashes;
+
+    /**
+     * コンストラクタ
+     *
+     * @param bitSize ビット数
+     * @param hashes  ハッシュ関数の数
+     */
+    private BloomFilter(long bitSize, int hashes) {
+        this.bits = new long[(int) ((bitSize + 63) / 64)];
+        this.bitSize = (long) bits.length * 64;
+        this.hashes = hashes;
+    }
+
+    /**
+     * 想定件数と誤判定率からフィルタを作成します
+     * 必要なビット数がメモリ上限を超える場合は上限に合わせ、誤判定率の方を悪化させます
+     *
+     * @param expected          想定件数
+     * @param falsePositiveRate 誤判定率
+     * @param maxBytes          メモリ上限(バイト)
+     * @return ブルームフィルタ
+     */
+    public static BloomFilter create(long expected, double falsePositiveRate, long maxBytes) {
+        long n = Math.max(1L, expected);
+        double ln2 = Math.log(2);
+        long optimalBits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (ln2 * ln2));
+        long maxBits = Math.min(Math.max(64L, maxBytes * 8), (long) Integer.MAX_VALUE * 64);
+        long bitSize = Math.max(64L, Math.min(optimalBits, maxBits));
+        int hashes = (int) Math.max(1L, Math.round((double) bitSize / n * ln2));
+        return new BloomFilter(bitSize, Math.min(hashes, 16));
+    }
+
+    /**
+     * 値を登録します
+     *
+     * @param value 値
+     */
+    public void put(String value) {
+        long h1 = hash(value, 0x9E3779B97F4A7C15L);
+        long h2 = hash(value, 0xC2B2AE3D27D4EB4FL);
+        for (int i = 0; i < hashes; i++) {
+            long index = Long.remainderUnsigned(h1 + i * h2, bitSize);
+            bits[(int) (index >>> 6)] |= 1L << index;
+        }
+    }
+
+    /**
+     * 値が登録されている可能性があるかを判定します
+     *
+     * @param value 値
+     * @return true:登録されているかもしれない<br>false:確実に登録されていない
+     */
+    public boolean mightContain(String value) {
+        long h1 = hash(value, 0x9E3779B97F4A7C15L);
+        long h2 = hash(value, 0xC2B2AE3D27D4EB4FL);
+        for (int i = 0; i < hashes; i++) {
+            long index = Long.remainderUnsigned(h1 + i * h2, bitSize);
+            if ((bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 使用メモリ量(バイト)を返します
+     *
+     * @return 使用メモリ量
+     */
+    public long byteSize() {
+        return (long) bits.length * 8;
+    }
+
+    /**
+     * ハッシュ関数の数を返します
+     *
+     * @return ハッシュ関数の数
+     */
+    public int getHashes() {
+        return hashes;
+    }
+
+    /**
+     * 64ビットハッシュを計算します(FNV-1a に MurmurHash3 の最終ミックスを加えたもの)
+     *
+     * @param value 値
+     * @param seed  シード
+     * @return ハッシュ値
+     */
+    private static long hash(String value, long seed) {
+        long h = seed ^ 0xCBF29CE484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,67 +1,93 @@
 package sample.keycloak;
 
-import org.apache.commons.lang.text.StrSubstitutor;
 import org.jboss.logging.Logger;
+import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
 import org.keycloak.credential.CredentialInputUpdater;
 import org.keycloak.credential.CredentialInputValidator;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.storage.ReadOnlyException;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.UserStorageProvider;
 import org.keycloak.storage.adapter.AbstractUserAdapter;
 import org.keycloak.storage.user.UserLookupProvider;
+import org.keycloak.storage.user.UserQueryProvider;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * データベースに接続し、ユーザ認証を行うストレージプロバイダ
  */
 public class DatabaseUserStorageProvider implements
-        UserStorageProvider, UserLookupProvider, CredentialInputValidator, CredentialInputUpdater {
+        UserStorageProvider, UserLookupProvider, UserQueryProvider,
+        CredentialInputValidator, CredentialInputUpdater {
 
     /** ユーザ名を格納するキー */
     private static final String KEY_USERNAME = "username";
+    /** メールアドレスを格納するキー */
+    private static final String KEY_EMAIL = "email";
+    /** パスワードを格納するキー */
+    private static final String KEY_PASSWORD = "password";
     // ロガー
     private static final Logger LOG = Logger.getLogger(DatabaseUserStorageProvider.class);
     // keycloakランタイムへのアクセスを提供するオブジェクト
     private final KeycloakSession session;
     // プロバイダの設定内容を保持するオブジェクト
     private final ComponentModel model;
-    // SQLコネクション
-    private final Connection connection;
-    // ログインしたユーザのキャッシュ(再検索防止用)
-    private final Map<String, UserModel> loginUserCache = new HashMap<>();
-    // ユーザ検索用SQL
-    private final String sql;
+    // コネクションプールを保持するデータベース資源
+    private final DatabaseUserStore store;
+    // このセッション中に取得したユーザ情報(同じセッション内での再検索防止用)
+    private final Map<UserCache.Key, UserRecord> sessionRecords = new HashMap<>();
+    // このセッション中に読み込んだ属性のグループ(ユーザごと・グループ名ごと)
+    private final Map<UserCache.Key, Map<String, Map<String, List<String>>>> sessionAttributes = new HashMap<>();
+    // このセッション中に変換したロール(ユーザごと)
+    private final Map<UserCache.Key, Set<RoleModel>> sessionRoles = new HashMap<>();
+    // レルムごとのロールの変換(レルム・クライアントのロール一覧をセッション中に1回だけ取得する)
+    private final Map<String, RoleResolver> roleResolvers = new HashMap<>();
+    // このセッション中に変換したグループ(ユーザごと)
+    private final Map<UserCache.Key, Set<GroupModel>> sessionGroups = new HashMap<>();
+    // レルムごとのグループの変換
+    private final Map<String, GroupResolver> groupResolvers = new HashMap<>();
 
     /**
      * コンストラクタ
      *
      * @param session    セッション情報
      * @param model      プロバイダ設定内容
-     * @param connection SQLコネクション
-     * @param sql        ユーザ検索用SQL
+     * @param store      データベース資源(利用開始済み、close() で利用を終了します)
      */
     public DatabaseUserStorageProvider(
             KeycloakSession session,
             ComponentModel model,
-            Connection connection,
-            String sql) {
+            DatabaseUserStore store) {
         this.session = session;
         this.model = model;
-        this.connection = connection;
-        this.sql = sql;
+        this.store = store;
     }
 
     /**
@@ -77,15 +103,16 @@ public class DatabaseUserStorageProvider implements
 
     /**
      * 明示的なトランザクション境界内で処理を実施します
+     * コネクションは処理の直前にプールから借り受け、処理後すぐに返却します
      *
      * @param function 実施したい処理
      * @param <T>      戻り値の型
      * @return 処理の結果
      */
     private <T> T transactionTry(
-            ThrowableFunction<Statement, T, SQLException> function) {
-        try (Statement st = connection.createStatement()) {
-            return function.apply(st);
+            ThrowableFunction<Connection, T, SQLException> function) {
+        try (Connection connection = store.getConnection()) {
+            return function.apply(connection);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
@@ -102,7 +129,8 @@ public class DatabaseUserStorageProvider implements
     public UserModel getUserById(String id, RealmModel realm) {
         StorageId storageId = new StorageId(id);
         String username = storageId.getExternalId();
-        return getUserByUsername(username, realm);
+        return lookup("getUserById", store.cacheKey(realm.getId(), username),
+                () -> findUser(username), realm);
     }
 
     /**
@@ -114,25 +142,141 @@ public class DatabaseUserStorageProvider implements
      */
     @Override
     public UserModel getUserByUsername(String username, RealmModel realm) {
-        UserModel adapter = loginUserCache.get(username);
-        if (adapter == null) {
-            try {
-                Map<String, String> param = new HashMap<>();
-                param.put(KEY_USERNAME, username);
-                String name = transactionTry(st -> {
-                    ResultSet re = st.executeQuery(new StrSubstitutor(param).replace(sql));
-                    return re.next() ? re.getString(KEY_USERNAME) : null;
-                });
-                return name == null || name.isBlank() ? null : createAdapter(name, realm);
-            } catch (Exception e) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.warnv(e, "Unable to search for '{0}'", username);
-                } else {
-                    LOG.warnv("Unable to search for '{0}'", username);
+        return lookup("getUserByUsername", store.cacheKey(realm.getId(), username),
+                () -> findUser(username), realm);
+    }
+
+    /**
+     * キャッシュまたは外部DBから認証用ユーザ情報を検索し、結果と処理時間をメトリクスに記録します
+     *
+     * @param operation 処理名
+     * @param key       キャッシュのキー(ユーザ名またはメールアドレス)
+     * @param loader    外部DBからの読み込み処理
+     * @param realm     レルム
+     * @return 認証用ユーザ情報
+     */
+    private UserModel lookup(String operation, UserCache.Key key,
+                             Callable<UserRecord> loader, RealmModel realm) {
+        long start = System.nanoTime();
+        String outcome = UserStorageMetrics.OUTCOME_ERROR;
+        try {
+            UserRecord record = sessionRecords.get(key);
+            if (record == null) {
+                record = store.getUserCache().get(key);
+            }
+            if (record != null) {
+                outcome = UserStorageMetrics.OUTCOME_HIT;
+            } else if (store.getUserCache().isMissing(key)) {
+                outcome = UserStorageMetrics.OUTCOME_NEGATIVE_HIT;
+                return null;
+            } else if (key.getKind() == UserCache.Kind.USERNAME && !store.mightExist(key.getValue())) {
+                // フィルタの作り直し後すぐにログインできるよう、存在しないユーザとしてはキャッシュしない
+                outcome = UserStorageMetrics.OUTCOME_BLOOM_REJECT;
+                return null;
+            } else {
+                try {
+                    record = store.load(key, loader);
+                } catch (Exception e) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.warnv(e, "Unable to search for '{0}'", key.getValue());
+                    } else {
+                        LOG.warnv("Unable to search for '{0}'", key.getValue());
+                    }
+                    return null;
                 }
+                outcome = record == null
+                        ? UserStorageMetrics.OUTCOME_NOT_FOUND
+                        : UserStorageMetrics.OUTCOME_FOUND;
             }
+            if (record == null) {
+                return null;
+            }
+            remember(key, record);
+            return createAdapter(record, realm);
+        } finally {
+            record(operation, realm, outcome, start);
+        }
+    }
+
+    /**
+     * 取得したユーザ情報をこのセッション中は再利用できるように覚えておきます
+     *
+     * @param key    検索に使ったキー
+     * @param record ユーザ情報
+     */
+    private void remember(UserCache.Key key, UserRecord record) {
+        sessionRecords.put(key, record);
+        sessionRecords.put(key.withUsername(record.getUsername()), record);
+        if (record.getEmail() != null) {
+            sessionRecords.put(key.withEmail(record.getEmail()), record);
+        }
+    }
+
+    /**
+     * 処理の結果と処理時間をメトリクスに記録します
+     *
+     * @param operation 処理名
+     * @param realm     レルム
+     * @param outcome   結果
+     * @param start     処理開始時刻(System.nanoTime())
+     */
+    private void record(String operation, RealmModel realm, String outcome, long start) {
+        store.getMetrics().recordOperation(store.getComponentId(), realm.getId(),
+                operation, outcome, System.nanoTime() - start);
+    }
+
+    /**
+     * 外部DBからユーザ情報を検索します
+     *
+     * @param username ユーザ名
+     * @return ユーザ情報(見つからなければnull)
+     */
+    private UserRecord findUser(String username) {
+        // ログイン用SQLは認証に必要な情報をすべて1回で取得するため、まとめ検索より優先する
+        if (store.getLoginSql() == null && store.isBatching()) {
+            return store.loadBatched(username);
         }
-        return adapter;
+        return queryUser(username);
+    }
+
+    /**
+     * まとめ検索を使わず、外部DBからユーザ情報を1件だけ検索します
+     * まとめ検索用SQLはパスワードハッシュを返すとは限らないため、パスワード照合ではこちらを使います
+     *
+     * @param username ユーザ名
+     * @return ユーザ情報(見つからなければnull)
+     */
+    private UserRecord queryUser(String username) {
+        NamedSql query = store.getLoginSql() == null ? store.getUserSql() : store.getLoginSql();
+        Map<String, String> param = Collections.singletonMap(KEY_USERNAME, username);
+        return transactionTry(connection -> {
+            try (PreparedStatement ps = query.prepare(connection, param);
+                 ResultSet re = ps.executeQuery()) {
+                return re.next() ? UserRecord.from(re) : null;
+            }
+        });
+    }
+
+    /**
+     * 外部DBからメールアドレスでユーザ情報を検索します
+     *
+     * @param email 正規化したメールアドレス
+     * @return ユーザ情報(見つからなければnull)
+     */
+    private UserRecord findUserByEmail(String email) {
+        Map<String, String> param = Collections.singletonMap(KEY_EMAIL, email);
+        return transactionTry(connection -> {
+            try (PreparedStatement ps = store.getEmailSql().prepare(connection, param);
+                 ResultSet re = ps.executeQuery()) {
+                if (!re.next()) {
+                    return null;
+                }
+                UserRecord record = UserRecord.from(re);
+                // email 列を返さないSQLでも、メールアドレスの索引に登録できるようにする
+                return record == null || record.getEmail() != null
+                        ? record : new UserRecord(record.getUsername(), email);
+            }
+        });
     }
 
     /**
@@ -143,14 +287,243 @@ public class DatabaseUserStorageProvider implements
      * @return 認証用ユーザ情報
      */
     protected UserModel createAdapter(String username, RealmModel realm) {
+        return createAdapter(new UserRecord(username), realm);
+    }
+
+    /**
+     * 認証用ユーザ情報を作成します
+     *
+     * @param record ユーザ情報
+     * @param realm  レルム
+     * @return 認証用ユーザ情報
+     */
+    protected UserModel createAdapter(UserRecord record, RealmModel realm) {
         return new AbstractUserAdapter(session, realm, model) {
             @Override
             public String getUsername() {
-                return username;
+                return record.getUsername();
+            }
+
+            @Override
+            public String getEmail() {
+                return record.getEmail();
+            }
+
+            @Override
+            public String getFirstName() {
+                return getFirstAttribute(FIRST_NAME);
+            }
+
+            @Override
+            public String getLastName() {
+                return getFirstAttribute(LAST_NAME);
+            }
+
+            @Override
+            public String getFirstAttribute(String name) {
+                List<String> values = getAttribute(name);
+                return values.isEmpty() ? null : values.get(0);
+            }
+
+            @Override
+            public List<String> getAttribute(String name) {
+                // 属性を含むグループだけを読み込む
+                AttributeGroups groups = store.getAttributeGroups();
+                AttributeGroups.Group group = groups == null ? null : groups.groupOf(name);
+                if (group != null) {
+                    List<String> values = groupAttributes(record, group, realm).get(name);
+                    if (values != null) {
+                        return values;
+                    }
+                }
+                List<String> values = baseAttributes(record).get(name);
+                return values == null ? Collections.emptyList() : values;
+            }
+
+            @Override
+            public Stream<String> getAttributeStream(String name) {
+                return getAttribute(name).stream();
+            }
+
+            @Override
+            protected Set<RoleModel> getRoleMappingsInternal() {
+                return roleMappings(record, realm);
+            }
+
+            @Override
+            protected Set<GroupModel> getGroupsInternal() {
+                return groups(record, realm);
+            }
+
+            @Override
+            public Map<String, List<String>> getAttributes() {
+                MultivaluedHashMap<String, String> attributes = baseAttributes(record);
+                // 全属性の参照(管理コンソールなど)では全グループを読み込む
+                AttributeGroups groups = store.getAttributeGroups();
+                if (groups != null) {
+                    for (AttributeGroups.Group group : groups.getGroups()) {
+                        groupAttributes(record, group, realm).forEach(attributes::put);
+                    }
+                }
+                return attributes;
             }
         };
     }
 
+    /**
+     * ユーザ検索で取得済みの属性を返します
+     *
+     * @param record ユーザ情報
+     * @return 属性
+     */
+    private static MultivaluedHashMap<String, String> baseAttributes(UserRecord record) {
+        MultivaluedHashMap<String, String> attributes = new MultivaluedHashMap<>();
+        if (record.getAttributes() != null) {
+            record.getAttributes().forEach(attributes::addAll);
+        }
+        attributes.putSingle(UserModel.USERNAME, record.getUsername());
+        if (record.getEmail() != null) {
+            attributes.putSingle(UserModel.EMAIL, record.getEmail());
+        }
+        return attributes;
+    }
+
+    /**
+     * 属性のグループを読み込みます
+     * 同じセッション内では1ユーザにつき1グループ1回だけ問い合わせ、失敗した場合も空として覚えておきます
+     *
+     * @param record ユーザ情報
+     * @param group  属性のグループ
+     * @param realm  レルム
+     * @return グループの属性
+     */
+    private Map<String, List<String>> groupAttributes(UserRecord record, AttributeGroups.Group group,
+                                                      RealmModel realm) {
+        Map<String, Map<String, List<String>>> loaded = sessionAttributes.computeIfAbsent(
+                store.cacheKey(realm.getId(), record.getUsername()), k -> new HashMap<>());
+        Map<String, List<String>> attributes = loaded.get(group.getName());
+        if (attributes != null) {
+            return attributes;
+        }
+        long start = System.nanoTime();
+        String outcome = UserStorageMetrics.OUTCOME_ERROR;
+        try {
+            attributes = transactionTry(connection -> group.load(connection, record.getUsername()));
+            outcome = attributes.isEmpty()
+                    ? UserStorageMetrics.OUTCOME_NOT_FOUND
+                    : UserStorageMetrics.OUTCOME_FOUND;
+        } catch (Exception e) {
+            LOG.warnv(e, "Unable to load attribute group '{0}' of '{1}'", group, record.getUsername());
+            attributes = Collections.emptyMap();
+        } finally {
+            record("loadAttributeGroup", realm, outcome, start);
+        }
+        loaded.put(group.getName(), attributes);
+        return attributes;
+    }
+
+    /**
+     * ユーザに割り当てられたロールを返します
+     * 割り当ての取得は1回の問い合わせで行い、Keycloak のロールへの変換はレルム・クライアント単位でまとめて行います
+     *
+     * @param record ユーザ情報
+     * @param realm  レルム
+     * @return ロール
+     */
+    private Set<RoleModel> roleMappings(UserRecord record, RealmModel realm) {
+        UserCache.Key key = store.cacheKey(realm.getId(), record.getUsername());
+        Set<RoleModel> roles = sessionRoles.get(key);
+        if (roles == null) {
+            List<RoleMapping> mappings = loadRoleMappings(record, key, realm);
+            roles = Collections.unmodifiableSet(roleResolvers
+                    .computeIfAbsent(realm.getId(), id -> new RoleResolver(realm))
+                    .resolve(mappings));
+            sessionRoles.put(key, roles);
+        }
+        return roles;
+    }
+
+    /**
+     * ユーザのロールの割り当てを取得します
+     * ログイン用SQLで取得済みであればそれを使い、なければキャッシュ、ロール取得SQLの順に参照します
+     *
+     * @param record ユーザ情報
+     * @param key    ユーザのキー
+     * @param realm  レルム
+     * @return ロールの割り当て(取得できなかった場合は空)
+     */
+    private List<RoleMapping> loadRoleMappings(UserRecord record, UserCache.Key key, RealmModel realm) {
+        if (record.getRoles() != null) {
+            return record.getRoles();
+        }
+        NamedSql sql = store.getRoleSql();
+        if (sql == null) {
+            return Collections.emptyList();
+        }
+        return loadMappings("loadRoles", store.getRoleCache(), key, realm,
+                connection -> RoleResolver.load(connection, sql, record.getUsername()));
+    }
+
+    /**
+     * ユーザが所属するグループを返します
+     * 所属の取得は1回の問い合わせで行い、変換したグループはセッション中再利用します
+     *
+     * @param record ユーザ情報
+     * @param realm  レルム
+     * @return グループ
+     */
+    private Set<GroupModel> groups(UserRecord record, RealmModel realm) {
+        UserCache.Key key = store.cacheKey(realm.getId(), record.getUsername());
+        Set<GroupModel> groups = sessionGroups.get(key);
+        if (groups == null) {
+            NamedSql sql = store.getGroupSql();
+            List<String> paths = sql == null
+                    ? Collections.emptyList()
+                    : loadMappings("loadGroups", store.getGroupCache(), key, realm,
+                            connection -> GroupResolver.load(connection, sql, record.getUsername()));
+            groups = Collections.unmodifiableSet(groupResolvers
+                    .computeIfAbsent(realm.getId(), id -> new GroupResolver(realm))
+                    .resolve(paths));
+            sessionGroups.put(key, groups);
+        }
+        return groups;
+    }
+
+    /**
+     * ユーザごとの割り当て(ロール・グループ)をキャッシュまたは外部DBから取得し、結果をメトリクスに記録します
+     *
+     * @param operation 処理名
+     * @param cache     割り当てのキャッシュ(無効の場合はnull)
+     * @param key       ユーザのキー
+     * @param realm     レルム
+     * @param loader    外部DBからの読み込み処理
+     * @param <T>       割り当ての型
+     * @return 割り当て(取得できなかった場合は空)
+     */
+    private <T> List<T> loadMappings(String operation, MappingCache<T> cache, UserCache.Key key, RealmModel realm,
+                                     ThrowableFunction<Connection, List<T>, SQLException> loader) {
+        long start = System.nanoTime();
+        String outcome = UserStorageMetrics.OUTCOME_ERROR;
+        try {
+            List<T> mappings = cache == null ? null : cache.get(key);
+            if (mappings != null) {
+                outcome = UserStorageMetrics.OUTCOME_HIT;
+                return mappings;
+            }
+            mappings = transactionTry(loader);
+            outcome = UserStorageMetrics.OUTCOME_FOUND;
+            if (cache != null) {
+                cache.put(key, mappings);
+            }
+            return mappings;
+        } catch (Exception e) {
+            LOG.warnv(e, "Unable to load mappings: operation={0}, username={1}", operation, key.getValue());
+            return Collections.emptyList();
+        } finally {
+            record(operation, realm, outcome, start);
+        }
+    }
+
     /**
      * メールアドレスから認証用ユーザ情報を検索します
      *
@@ -160,9 +533,359 @@ public class DatabaseUserStorageProvider implements
      */
     @Override
     public UserModel getUserByEmail(String email, RealmModel realm) {
-        // TODO メールアドレスから検索
-        // TODO ヒットしたらユーザ名から認証用ユーザ情報を作成
-        return null;
+        if (store.getEmailSql() == null || email == null || email.isBlank()) {
+            record("getUserByEmail", realm, UserStorageMetrics.OUTCOME_NOT_FOUND, System.nanoTime());
+            return null;
+        }
+        String normalized = UserRecord.normalizeEmail(email);
+        return lookup("getUserByEmail", store.emailCacheKey(realm.getId(), normalized),
+                () -> findUserByEmail(normalized), realm);
+    }
+
+    /**
+     * ユーザ数を返します
+     *
+     * @param realm レルム
+     * @return ユーザ数
+     */
+    @Override
+    public int getUsersCount(RealmModel realm) {
+        try {
+            return transactionTry(connection -> store.getUserQuery().count(connection));
+        } catch (Exception e) {
+            LOG.warn("Unable to count users", e);
+            return 0;
+        }
+    }
+
+    /**
+     * 全ユーザを返します
+     *
+     * @param realm レルム
+     * @return 認証用ユーザ情報一覧
+     */
+    @Override
+    public List<UserModel> getUsers(RealmModel realm) {
+        return getUsers(realm, 0, -1);
+    }
+
+    /**
+     * ユーザ一覧の1ページを返します
+     *
+     * @param realm       レルム
+     * @param firstResult 開始位置
+     * @param maxResults  最大件数
+     * @return 認証用ユーザ情報一覧
+     */
+    @Override
+    public List<UserModel> getUsers(RealmModel realm, int firstResult, int maxResults) {
+        return page(realm, null, null, null, firstResult, maxResults);
+    }
+
+    /**
+     * ユーザを検索します
+     *
+     * @param search 検索文字列
+     * @param realm  レルム
+     * @return 認証用ユーザ情報一覧
+     */
+    @Override
+    public List<UserModel> searchForUser(String search, RealmModel realm) {
+        return searchForUser(search, realm, 0, -1);
+    }
+
+    /**
+     * ユーザを検索し、1ページを返します
+     *
+     * @param search      検索文字列(* はワイルドカード)
+     * @param realm       レルム
+     * @param firstResult 開始位置
+     * @param maxResults  最大件数
+     * @return 認証用ユーザ情報一覧
+     */
+    @Override
+    public List<UserModel> searchForUser(String search, RealmModel realm, int firstResult, int maxResults) {
+        if (search == null || search.isBlank() || "*".equals(search.trim())) {
+            return getUsers(realm, firstResult, maxResults);
+        }
+        return page(realm, like(search), null, null, firstResult, maxResults);
+    }
+
+    /**
+     * 属性を指定してユーザを検索します
+     *
+     * @param params 検索条件
+     * @param realm  レルム
+     * @return 認証用ユーザ情報一覧
+     */
+    @Override
+    public List<UserModel> searchForUser(Map<String, String> params, RealmModel realm) {
+        return searchForUser(params, realm, 0, -1);
+    }
+
+    /**
+     * 属性を指定してユーザを検索し、1ページを返します
+     * メールアドレスはメールアドレス検索用SQLで検索し、ユーザ名・姓・名はその結果を絞り込む条件として使います
+     * メールアドレスがない場合はユーザ検索用SQLで検索し、姓・名は ${firstName}, ${lastName} としてSQLに渡します
+     * ユーザ検索用SQLが姓・名を扱わない場合は、検索結果の行に含まれる属性だけで絞り込みます
+     * (ユーザごとに属性のグループを問い合わせることはしません)
+     *
+     * @param params      検索条件
+     * @param realm       レルム
+     * @param firstResult 開始位置
+     * @param maxResults  最大件数
+     * @return 認証用ユーザ情報一覧
+     */
+    @Override
+    public List<UserModel> searchForUser(
+            Map<String, String> params, RealmModel realm, int firstResult, int maxResults) {
+        String username = condition(params, UserModel.USERNAME);
+        String email = condition(params, UserModel.EMAIL);
+        String firstName = condition(params, UserModel.FIRST_NAME);
+        String lastName = condition(params, UserModel.LAST_NAME);
+        if (email != null) {
+            // メールアドレスで検索すると最大1件のため、姓・名の属性を読み込んでもよい
+            UserModel user = getUserByEmail(email, realm);
+            return user != null && firstResult <= 0 && maxResults != 0
+                    && matches(user.getUsername(), username)
+                    && matches(user.getFirstName(), firstName)
+                    && matches(user.getLastName(), lastName)
+                    ? Collections.singletonList(user) : Collections.emptyList();
+        }
+        if (firstName == null && lastName == null) {
+            return username == null
+                    ? Collections.emptyList() : searchForUser(username, realm, firstResult, maxResults);
+        }
+        if (store.getUserQuery().searchesNames()) {
+            return page(realm, username == null ? "%" : like(username),
+                    like(firstName), like(lastName), firstResult, maxResults);
+        }
+        if (username == null) {
+            return Collections.emptyList();
+        }
+        // 姓・名で絞り込むため、ユーザ名の検索結果を上限件数まで読んでから開始位置・件数を適用する
+        return records(realm, like(username), null, null, 0, -1).stream()
+                .filter(record -> matches(baseAttributes(record).getFirst(UserModel.FIRST_NAME), firstName))
+                .filter(record -> matches(baseAttributes(record).getFirst(UserModel.LAST_NAME), lastName))
+                .skip(Math.max(0, firstResult))
+                .limit(maxResults < 0 ? Long.MAX_VALUE : maxResults)
+                .map(record -> createAdapter(record, realm))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 検索文字列を LIKE パターンに変換します(部分一致、* はワイルドカード)
+     *
+     * @param search 検索文字列
+     * @return LIKE パターン(検索文字列がnullの場合はnull)
+     */
+    private static String like(String search) {
+        return search == null ? null : "%" + search.trim().replace('*', '%') + "%";
+    }
+
+    /**
+     * 検索条件を取得します
+     *
+     * @param params 検索条件
+     * @param key    条件のキー
+     * @return 条件(未指定・空白の場合はnull)
+     */
+    private static String condition(Map<String, String> params, String key) {
+        String value = params.get(key);
+        return value == null || value.isBlank() ? null : value.trim();
+    }
+
+    /**
+     * 値が検索条件に一致するかを判定します(大文字小文字を区別しない部分一致、* はワイルドカード)
+     *
+     * @param value     値
+     * @param condition 検索条件(nullの場合は常に一致)
+     * @return true:一致する<br>false:一致しない
+     */
+    private static boolean matches(String value, String condition) {
+        if (condition == null) {
+            return true;
+        }
+        if (value == null) {
+            return false;
+        }
+        String text = value.toLowerCase(Locale.ROOT);
+        for (String part : condition.toLowerCase(Locale.ROOT).split("\\*")) {
+            int index = text.indexOf(part);
+            if (index < 0) {
+                return false;
+            }
+            text = text.substring(index + part.length());
+        }
+        return true;
+    }
+
+    /**
+     * グループのメンバーを返します
+     *
+     * @param realm レルム
+     * @param group グループ
+     * @return 認証用ユーザ情報一覧
+     */
+    @Override
+    public List<UserModel> getGroupMembers(RealmModel realm, GroupModel group) {
+        return getGroupMembers(realm, group, 0, -1);
+    }
+
+    /**
+     * グループのメンバーの1ページを返します
+     *
+     * @param realm       レルム
+     * @param group       グループ
+     * @param firstResult 開始位置
+     * @param maxResults  最大件数
+     * @return 認証用ユーザ情報一覧
+     */
+    @Override
+    public List<UserModel> getGroupMembers(RealmModel realm, GroupModel group, int firstResult, int maxResults) {
+        // Keycloak 12 の UserQueryProvider はリストを返すため、件数指定のない呼び出しは上限で打ち切る
+        int max = maxResults < 0 ? store.getUserQuery().getMaxResults() : maxResults;
+        List<UserModel> members = groupMembers(realm, group, firstResult, max).collect(Collectors.toList());
+        if (maxResults < 0 && members.size() >= max) {
+            LOG.warnv("Members of group {0} truncated to {1} (ListMaxResults), use paging to list the rest.",
+                    group.getName(), max);
+        }
+        return members;
+    }
+
+    /**
+     * グループのメンバーを少しずつ読み込むストリームを返します
+     * フェッチサイズ件ずつキーセット方式でページを取得し、消費された分だけ次のページを問い合わせるため、
+     * メンバーが非常に多いグループでも保持するのは1ページ分だけです
+     * コネクションはページごとに借り受けて返却するため、ストリームを閉じ忘れてもプールは枯渇しません
+     *
+     * @param realm       レルム
+     * @param group       グループ
+     * @param firstResult 開始位置
+     * @param maxResults  最大件数(負の場合は無制限)
+     * @return 認証用ユーザ情報のストリーム
+     */
+    private Stream<UserModel> groupMembers(RealmModel realm, GroupModel group, int firstResult, int maxResults) {
+        KeysetUserQuery query = store.getUserQuery();
+        if (!query.hasMemberSql() || maxResults == 0) {
+            return Stream.empty();
+        }
+        String path = KeycloakModelUtils.buildGroupPath(group);
+        int pageSize = query.getFetchSize();
+        Spliterator<UserRecord> members = new Spliterators.AbstractSpliterator<UserRecord>(
+                Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            // 最初のページの開始位置
+            private final int offset = Math.max(0, firstResult);
+            // 直前のページの最後のユーザ名(最初のページを取得するまではnull)
+            private String after;
+            // 残りの件数
+            private long remaining = maxResults < 0 ? Long.MAX_VALUE : maxResults;
+            // 取得済みのページ
+            private Iterator<UserRecord> page = Collections.emptyIterator();
+            // 最後のページを取得したか
+            private boolean last;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super UserRecord> action) {
+                if (remaining == 0) {
+                    return false;
+                }
+                if (!page.hasNext()) {
+                    if (last) {
+                        return false;
+                    }
+                    int size = (int) Math.min(pageSize, remaining);
+                    String from = after;
+                    List<UserRecord> records;
+                    try {
+                        // 2ページ目以降は直前のユーザ名から読み始める(オフセットの読み飛ばしをしない)
+                        records = transactionTry(connection -> from == null
+                                ? query.members(connection, path, offset, size)
+                                : query.membersAfter(connection, path, from, size));
+                    } catch (Exception e) {
+                        LOG.warnv(e, "Unable to list members of group {0}", path);
+                        records = Collections.emptyList();
+                    }
+                    last = records.size() < size;
+                    if (!records.isEmpty()) {
+                        after = records.get(records.size() - 1).getUsername();
+                    }
+                    page = records.iterator();
+                    if (!page.hasNext()) {
+                        return false;
+                    }
+                }
+                remaining--;
+                action.accept(page.next());
+                return true;
+            }
+        };
+        return StreamSupport.stream(members, false)
+                .peek(record -> store.getUserCache().put(
+                        store.cacheKey(realm.getId(), record.getUsername()), record))
+                .map(record -> createAdapter(record, realm));
+    }
+
+    /**
+     * 属性値が一致するユーザを返します
+     *
+     * @param attrName  属性名
+     * @param attrValue 属性値
+     * @param realm     レルム
+     * @return 認証用ユーザ情報一覧
+     */
+    @Override
+    public List<UserModel> searchForUserByUserAttribute(String attrName, String attrValue, RealmModel realm) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * ユーザ一覧・検索の1ページを取得します
+     *
+     * @param realm       レルム
+     * @param search      検索文字列(一覧の場合はnull)
+     * @param firstName   名の検索文字列(条件にしない場合はnull)
+     * @param lastName    姓の検索文字列(条件にしない場合はnull)
+     * @param firstResult 開始位置
+     * @param maxResults  最大件数(負の場合は ListMaxResults 件まで)
+     * @return 認証用ユーザ情報一覧
+     */
+    private List<UserModel> page(RealmModel realm, String search, String firstName, String lastName,
+                                 int firstResult, int maxResults) {
+        return records(realm, search, firstName, lastName, firstResult, maxResults).stream()
+                .map(record -> createAdapter(record, realm))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * ユーザ一覧・検索の1ページのユーザ情報を取得し、キャッシュします
+     *
+     * @param realm       レルム
+     * @param search      検索文字列(一覧の場合はnull)
+     * @param firstName   名の検索文字列(条件にしない場合はnull)
+     * @param lastName    姓の検索文字列(条件にしない場合はnull)
+     * @param firstResult 開始位置
+     * @param maxResults  最大件数(負の場合は ListMaxResults 件まで)
+     * @return ユーザ情報一覧
+     */
+    private List<UserRecord> records(RealmModel realm, String search, String firstName, String lastName,
+                                     int firstResult, int maxResults) {
+        // Keycloak 12 の UserQueryProvider はリストを返すため、件数指定のない呼び出しは上限で打ち切る
+        int max = maxResults < 0 ? store.getUserQuery().getMaxResults() : maxResults;
+        try {
+            List<UserRecord> records = transactionTry(connection ->
+                    store.getUserQuery().page(connection, search, firstName, lastName, firstResult, max));
+            if (maxResults < 0 && records.size() >= max) {
+                LOG.warnv("Users truncated to {0} (ListMaxResults), use paging to list the rest: search={1}",
+                        max, search);
+            }
+            records.forEach(record -> store.getUserCache().put(
+                    store.cacheKey(realm.getId(), record.getUsername()), record));
+            return records;
+        } catch (Exception e) {
+            LOG.warnv(e, "Unable to list users: search={0}", search);
+            return Collections.emptyList();
+        }
     }
 
     /**
@@ -175,8 +898,7 @@ public class DatabaseUserStorageProvider implements
      */
     @Override
     public boolean isConfiguredFor(RealmModel realm, UserModel user, String credentialType) {
-        // TODO 認証を考える
-        return true;
+        return supportsCredentialType(credentialType);
     }
 
     /**
@@ -189,12 +911,107 @@ public class DatabaseUserStorageProvider implements
      */
     @Override
     public boolean isValid(RealmModel realm, UserModel user, CredentialInput credentialInput) {
-        // TODO 認証を考える
-        loginUserCache.put(user.getUsername(), user);
-        if (LOG.isDebugEnabled()) {
-            LOG.debugv("Success for connecting: {0}", user.getUsername());
+        if (!supportsCredentialType(credentialInput.getType())
+                || credentialInput.getChallengeResponse() == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        String outcome = UserStorageMetrics.OUTCOME_ERROR;
+        if (store.getVerifySql() != null) {
+            return verifyInDatabase(realm, user, credentialInput.getChallengeResponse(), start);
+        }
+        char[] password = credentialInput.getChallengeResponse().toCharArray();
+        boolean erase = true;
+        try {
+            UserCache.Key key = store.cacheKey(realm.getId(), user.getUsername());
+            UserRecord record = credentialRecord(key);
+            if (record == null || record.getPasswordHash() == null) {
+                outcome = UserStorageMetrics.OUTCOME_NOT_FOUND;
+                return false;
+            }
+            VerifiedCredentialCache verified = store.getVerifiedCredentialCache();
+            // パスワードは照合後に消去されるため、HMAC は照合前に計算しておく
+            byte[] digest = verified == null ? null : verified.digest(record.getPasswordHash(), password);
+            if (digest != null && verified.contains(key, digest)) {
+                outcome = UserStorageMetrics.OUTCOME_HIT;
+                return true;
+            }
+            // 照合を依頼した後の消去は PasswordVerifier が照合の終了時に行う(タイムアウト後も照合中のスレッドが参照するため)
+            erase = false;
+            boolean valid = store.verifyPassword(password, record.getPasswordHash());
+            if (digest != null) {
+                if (valid) {
+                    verified.put(key, digest);
+                } else {
+                    verified.invalidate(key);
+                }
+            }
+            outcome = valid ? UserStorageMetrics.OUTCOME_VALID : UserStorageMetrics.OUTCOME_INVALID;
+            if (LOG.isDebugEnabled()) {
+                LOG.debugv("Password verification for {0}: {1}", user.getUsername(), outcome);
+            }
+            return valid;
+        } catch (RuntimeException e) {
+            LOG.warnv("Unable to verify password for '{0}'", user.getUsername());
+            return false;
+        } finally {
+            if (erase) {
+                Arrays.fill(password, '\0');
+            }
+            record("isValid", realm, outcome, start);
         }
-        return true;
+    }
+
+    /**
+     * パスワード照合SQLでDB側にパスワードを照合させます
+     * パスワードハッシュをKeycloakに転送せず、ハッシュ計算もDB側で行います
+     *
+     * @param realm    レルム
+     * @param user     認証用ユーザ情報
+     * @param password 入力されたパスワード
+     * @param start    処理開始時刻(System.nanoTime())
+     * @return true:認証OK<br>false:認証NG
+     */
+    private boolean verifyInDatabase(RealmModel realm, UserModel user, String password, long start) {
+        String outcome = UserStorageMetrics.OUTCOME_ERROR;
+        Map<String, String> param = new HashMap<>();
+        param.put(KEY_USERNAME, user.getUsername());
+        param.put(KEY_PASSWORD, password);
+        try {
+            boolean valid = transactionTry(connection -> {
+                try (PreparedStatement ps = store.getVerifySql().prepare(connection, param);
+                     ResultSet re = ps.executeQuery()) {
+                    return re.next() && re.getBoolean(1);
+                }
+            });
+            outcome = valid ? UserStorageMetrics.OUTCOME_VALID : UserStorageMetrics.OUTCOME_INVALID;
+            return valid;
+        } catch (RuntimeException e) {
+            LOG.warnv("Unable to verify password for '{0}'", user.getUsername());
+            return false;
+        } finally {
+            record("isValid", realm, outcome, start);
+        }
+    }
+
+    /**
+     * パスワード照合に使うユーザ情報を取得します
+     * 共有キャッシュのユーザ情報はパスワードハッシュを持たないため、
+     * このセッションで読み込んだユーザ情報になければ、外部DBから読み直します
+     * 同じユーザの同時ログインは1回の問い合わせにまとめます
+     *
+     * @param key キャッシュのキー
+     * @return ユーザ情報(見つからなければnull)
+     */
+    private UserRecord credentialRecord(UserCache.Key key) {
+        UserRecord record = sessionRecords.get(key);
+        if (record == null || record.getPasswordHash() == null) {
+            record = store.load(key, () -> queryUser(key.getValue()), true);
+        }
+        if (record != null) {
+            remember(key, record);
+        }
+        return record;
     }
 
     /**
@@ -220,7 +1037,7 @@ public class DatabaseUserStorageProvider implements
      */
     @Override
     public void disableCredentialType(RealmModel realm, UserModel user, String credentialType) {
-        // TODO 認証を考える
+        // 外部DBのパスワードは読み取り専用のため、無効にできる認証形式はない
     }
 
     /**
@@ -231,8 +1048,7 @@ public class DatabaseUserStorageProvider implements
      */
     @Override
     public boolean supportsCredentialType(String credentialType) {
-        // TODO 認証を考える
-        return true;
+        return PasswordCredentialModel.TYPE.equals(credentialType);
     }
 
     /**
@@ -244,18 +1060,16 @@ public class DatabaseUserStorageProvider implements
      */
     @Override
     public Set<String> getDisableableCredentialTypes(RealmModel realm, UserModel user) {
-        // TODO 認証を考える
+        // 外部DBのパスワードは読み取り専用のため、無効にできる認証形式はない
         return Collections.emptySet();
     }
 
     /**
      * プロバイダーを解放します
+     * コネクションは問い合わせごとに返却済みのため、データベース資源の利用の終了だけを伝えます
      */
     @Override
     public void close() {
-        try {
-            connection.close();
-        } catch (Exception ignore) {
-        }
+        store.release();
     }
 }
@@ -1,29 +1,48 @@
 package sample.keycloak;
 
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 import org.jboss.logging.Logger;
+import org.keycloak.Config;
 import org.keycloak.common.util.EnvUtil;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
 
+import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
 
 /**
  * データベースを使用して認証するユーザストレージプロバイダのファクトリ
  */
 public class DatabaseUserStorageProviderFactory implements
-        UserStorageProviderFactory<DatabaseUserStorageProvider> {
+        UserStorageProviderFactory<DatabaseUserStorageProvider>, ImportSynchronization {
 
     // ロガー
     private static final Logger LOG = Logger.getLogger(DatabaseUserStorageProviderFactory.class);
-    // プロバイダ名
-    private static final String PROVIDER_NAME = "database-user-storage";
+    /** プロバイダ名 */
+    static final String PROVIDER_NAME = "database-user-storage";
     // プロバイダ追加設定項目リスト
     private static final List<ProviderConfigProperty> configMetadata;
     // 設定項目ID: DB接続URL
@@ -34,6 +53,118 @@ public class DatabaseUserStorageProviderFactory implements
     private static final String CONFIG_PASSWORD = "Password";
     // 設定項目ID: ユーザ検索SQL
     private static final String CONFIG_SQL = "Sql";
+    // 設定項目ID: ログイン用SQL(ログイン射影)
+    private static final String CONFIG_LOGIN_SQL = "LoginSql";
+    // 設定項目ID: メールアドレス検索SQL
+    private static final String CONFIG_EMAIL_SQL = "EmailSql";
+    // 設定項目ID: パスワード照合SQL(DB側での照合)
+    private static final String CONFIG_VERIFY_SQL = "VerifySql";
+    // 設定項目ID: 必要になった時点で読み込む属性のグループ(JSON)
+    private static final String CONFIG_ATTRIBUTE_GROUPS = "AttributeGroups";
+    // 設定項目ID: ロール取得SQL
+    private static final String CONFIG_ROLE_SQL = "RoleSql";
+    // 設定項目ID: グループ取得SQL
+    private static final String CONFIG_GROUP_SQL = "GroupSql";
+    // 設定項目ID: グループのメンバー一覧用SQL
+    private static final String CONFIG_GROUP_MEMBERS_SQL = "GroupMembersSql";
+    // 設定項目ID: コネクションプールの最大接続数
+    private static final String CONFIG_POOL_SIZE = "PoolSize";
+    // 設定項目ID: プール内コネクションの最大生存時間(ミリ秒)
+    private static final String CONFIG_POOL_MAX_LIFETIME = "PoolMaxLifetime";
+    // 設定項目ID: プール内コネクションのアイドルタイムアウト(ミリ秒)
+    private static final String CONFIG_POOL_IDLE_TIMEOUT = "PoolIdleTimeout";
+    // 設定項目ID: コネクション取得待ちのタイムアウト(ミリ秒)
+    private static final String CONFIG_POOL_ACQUIRE_TIMEOUT = "PoolAcquireTimeout";
+    // 設定項目ID: サーバサイドプリペアドステートメントに切り替えるまでの実行回数(PostgreSQL)
+    private static final String CONFIG_PREPARE_THRESHOLD = "PrepareThreshold";
+    // 設定項目ID: コネクションごとにキャッシュするプリペアドステートメント数(PostgreSQL)
+    private static final String CONFIG_STATEMENT_CACHE_SIZE = "StatementCacheSize";
+    // 設定項目ID: ブルームフィルタ作成用に全ユーザ名を取得するSQL
+    private static final String CONFIG_BLOOM_FILTER_SQL = "BloomFilterSql";
+    // 設定項目ID: ブルームフィルタの誤判定率
+    private static final String CONFIG_BLOOM_FILTER_FPP = "BloomFilterFalsePositiveRate";
+    // 設定項目ID: ブルームフィルタのメモリ上限(バイト)
+    private static final String CONFIG_BLOOM_FILTER_MAX_BYTES = "BloomFilterMaxBytes";
+    // 設定項目ID: ブルームフィルタの作り直し間隔(秒)
+    private static final String CONFIG_BLOOM_FILTER_REFRESH_INTERVAL = "BloomFilterRefreshInterval";
+    // 設定項目ID: 複数ユーザをまとめて検索するSQL
+    private static final String CONFIG_BATCH_SQL = "BatchSql";
+    // 設定項目ID: 検索をまとめる時間窓(ミリ秒)
+    private static final String CONFIG_BATCH_WINDOW = "BatchWindowMillis";
+    // 設定項目ID: 1回にまとめる最大件数
+    private static final String CONFIG_BATCH_MAX_SIZE = "BatchMaxSize";
+    // 設定項目ID: ユーザ一覧用SQL
+    private static final String CONFIG_LIST_SQL = "ListSql";
+    // 設定項目ID: ユーザ検索用SQL(管理コンソールの検索)
+    private static final String CONFIG_SEARCH_SQL = "SearchSql";
+    // 設定項目ID: ユーザ数取得用SQL
+    private static final String CONFIG_COUNT_SQL = "CountSql";
+    // 設定項目ID: 一覧・検索で使うカーソルのフェッチサイズ
+    private static final String CONFIG_FETCH_SIZE = "FetchSize";
+    // 設定項目ID: 件数指定のない一覧で返す最大件数
+    private static final String CONFIG_LIST_MAX_RESULTS = "ListMaxResults";
+    // 設定項目ID: 全件同期SQL
+    private static final String CONFIG_SYNC_SQL = "SyncSql";
+    // 設定項目ID: 全件同期の並列数
+    private static final String CONFIG_SYNC_PARALLELISM = "SyncParallelism";
+    // 設定項目ID: 差分同期SQL
+    private static final String CONFIG_CHANGED_SQL = "ChangedSql";
+    // 設定項目ID: 差分同期でバケットごとのダイジェストを返すSQL
+    private static final String CONFIG_DIGEST_SQL = "DigestSql";
+    // 設定項目ID: 差分同期で1バケットのユーザを返すSQL
+    private static final String CONFIG_BUCKET_SQL = "BucketSql";
+    // 設定項目ID: 差分同期のバケットの桁数(16進)
+    private static final String CONFIG_BUCKET_DIGITS = "BucketDigits";
+    // 設定項目ID: 同期で1トランザクションに反映する件数
+    private static final String CONFIG_SYNC_BATCH_SIZE = "SyncBatchSize";
+    // 設定項目ID: 同期で使うカーソルのフェッチサイズ
+    private static final String CONFIG_SYNC_FETCH_SIZE = "SyncFetchSize";
+    // 設定項目ID: 差分同期で前回同期時刻より遡る秒数(時刻のずれの吸収用)
+    private static final String CONFIG_SYNC_OVERLAP = "SyncOverlap";
+    // SPI設定ID: ユーザ情報キャッシュの最大件数
+    private static final String SPI_USER_CACHE_MAX_SIZE = "userCacheMaxSize";
+    // SPI設定ID: ユーザ情報キャッシュの有効期限(秒)
+    private static final String SPI_USER_CACHE_TTL = "userCacheTtl";
+    // SPI設定ID: 存在しなかったユーザのキャッシュの有効期限(秒)
+    private static final String SPI_USER_MISSING_CACHE_TTL = "userMissingCacheTtl";
+    // SPI設定ID: パスワード検証スレッド数
+    private static final String SPI_HASH_THREADS = "hashThreads";
+    // SPI設定ID: パスワード検証待ちの最大件数
+    private static final String SPI_HASH_QUEUE_SIZE = "hashQueueSize";
+    // SPI設定ID: メモリハードなハッシュ方式に使えるメモリ上限(KiB)
+    private static final String SPI_HASH_MEMORY_BUDGET_KB = "hashMemoryBudgetKb";
+    // SPI設定ID: パスワード検証待ちのタイムアウト(ミリ秒)
+    private static final String SPI_HASH_TIMEOUT = "hashTimeout";
+    // SPI設定ID: 照合成功済みパスワードのキャッシュの有効期限(秒、0で無効)
+    private static final String SPI_VERIFIED_CREDENTIAL_CACHE_TTL = "verifiedCredentialCacheTtl";
+    // SPI設定ID: 照合成功済みパスワードのキャッシュの最大件数
+    private static final String SPI_VERIFIED_CREDENTIAL_CACHE_MAX_SIZE = "verifiedCredentialCacheMaxSize";
+    // SPI設定ID: ロールの割り当てのキャッシュの有効期限(秒、0で無効)
+    private static final String SPI_ROLE_CACHE_TTL = "roleCacheTtl";
+    // SPI設定ID: ロールの割り当てのキャッシュの最大件数
+    private static final String SPI_ROLE_CACHE_MAX_SIZE = "roleCacheMaxSize";
+    // SPI設定ID: グループの所属のキャッシュの有効期限(秒、0で無効)
+    private static final String SPI_GROUP_CACHE_TTL = "groupCacheTtl";
+    // SPI設定ID: グループの所属のキャッシュの最大件数
+    private static final String SPI_GROUP_CACHE_MAX_SIZE = "groupCacheMaxSize";
+    // コンポーネントIDごとのデータベース資源
+    private final Map<String, DatabaseUserStore> stores = new ConcurrentHashMap<>();
+    // 全コンポーネントで共有するユーザ情報キャッシュ
+    private UserCache userCache;
+    // 全コンポーネントで共有する同時検索のまとめ役
+    private final SingleFlight<UserCache.Key, UserRecord> singleFlight = new SingleFlight<>();
+    // 全コンポーネントで共有するメトリクス
+    private final UserStorageMetrics metrics = new UserStorageMetrics();
+    // 全コンポーネントで共有するパスワード検証
+    private PasswordVerifier passwordVerifier;
+    // 全コンポーネントで共有する照合成功済みパスワードのキャッシュ(無効の場合はnull)
+    private VerifiedCredentialCache verifiedCredentialCache;
+    // 全コンポーネントで共有するロールの割り当てのキャッシュ(無効の場合はnull)
+    private MappingCache<RoleMapping> roleCache;
+    // 全コンポーネントで共有するグループの所属のキャッシュ(無効の場合はnull)
+    private MappingCache<String> groupCache;
+    // ブルームフィルタの作り直しなど、バックグラウンド処理用のスケジューラ
+    private ScheduledExecutorService scheduler;
 
     static {
         configMetadata = ProviderConfigurationBuilder.create()
@@ -58,9 +189,253 @@ public class DatabaseUserStorageProviderFactory implements
                 .property().name(CONFIG_SQL)
                 .label(CONFIG_SQL)
                 .type(ProviderConfigProperty.STRING_TYPE)
-                .helpText("ユーザ検索用SQL\n${username}がユーザ名に置換されます")
+                .helpText("ユーザ検索用SQL\n${username}がユーザ名のバインド変数になります")
                 .defaultValue("select username from pg_user where username = '${username}'")
                 .add()
+                .property().name(CONFIG_LOGIN_SQL)
+                .label(CONFIG_LOGIN_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("ログイン用SQL(空の場合はユーザ検索用SQLを使用する)\n"
+                        + "設定するとユーザ検索をこのSQLで行い、認証に必要な情報を1回で取得します\n"
+                        + "列: username, email, password_hash, attributes(JSONオブジェクト),"
+                        + " roles(json_agg(json_build_object('client', ..., 'role', ...)))\n"
+                        + "${username}がユーザ名のバインド変数になります")
+                .add()
+                .property().name(CONFIG_EMAIL_SQL)
+                .label(CONFIG_EMAIL_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("メールアドレス検索用SQL(空の場合はメールアドレスで検索しない)\n"
+                        + "${email}が小文字に正規化したメールアドレスのバインド変数になります\n"
+                        + "lower(email) の関数インデックスを作成し、同じ式で比較してください\n"
+                        + "例: select username, email from users where lower(email) = ${email}")
+                .add()
+                .property().name(CONFIG_VERIFY_SQL)
+                .label(CONFIG_VERIFY_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("パスワード照合SQL(空の場合はKeycloak上でパスワードハッシュを照合する)\n"
+                        + "設定するとパスワードの照合をDB側で行い、1列目の真偽値を結果とします\n"
+                        + "${username}がユーザ名、${password}が入力されたパスワードのバインド変数になります\n"
+                        + "例: select crypt(${password}, password_hash) = password_hash"
+                        + " from users where username = ${username}")
+                .add()
+                .property().name(CONFIG_ATTRIBUTE_GROUPS)
+                .label(CONFIG_ATTRIBUTE_GROUPS)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("必要になった時点で読み込む属性のグループ(JSON、空の場合は使用しない)\n"
+                        + "グループ名ごとに、含まれる属性名とSQLを指定します。"
+                        + "属性が参照されたときに、そのグループだけをセッション中に1回読み込みます\n"
+                        + "列名が属性名になります(複数行は複数値)。${username}がユーザ名のバインド変数になります\n"
+                        + "例: {\"contact\": {\"attributes\": [\"phone\"],"
+                        + " \"sql\": \"select phone from contacts where username = ${username}\"}}")
+                .add()
+                .property().name(CONFIG_ROLE_SQL)
+                .label(CONFIG_ROLE_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("ロール取得SQL(空の場合はロールを割り当てない)\n"
+                        + "client(レルムロールの場合はnull), role 列を1行1ロールで返してください\n"
+                        + "${username}がユーザ名のバインド変数になります。ログイン用SQLが roles 列を返す場合は使用しません\n"
+                        + "例: select client_id as client, role_name as role from user_roles where username = ${username}")
+                .add()
+                .property().name(CONFIG_GROUP_SQL)
+                .label(CONFIG_GROUP_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("グループ取得SQL(空の場合はグループに所属させない)\n"
+                        + "group 列にグループのパス(/親/子)を1行1グループで返してください\n"
+                        + "${username}がユーザ名のバインド変数になります\n"
+                        + "例: select group_path as \"group\" from user_groups where username = ${username}")
+                .add()
+                .property().name(CONFIG_GROUP_MEMBERS_SQL)
+                .label(CONFIG_GROUP_MEMBERS_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("グループのメンバー一覧用SQL(空の場合はメンバーを表示しない)\n"
+                        + "${group}がグループのパス、${after}と${limit}は一覧用SQLと同じです\n"
+                        + "例: select username from user_groups where group_path = ${group}"
+                        + " and username > ${after} order by username limit ${limit}")
+                .add()
+                .property().name(CONFIG_POOL_SIZE)
+                .label(CONFIG_POOL_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("コネクションプールの最大接続数")
+                .defaultValue("10")
+                .add()
+                .property().name(CONFIG_POOL_MAX_LIFETIME)
+                .label(CONFIG_POOL_MAX_LIFETIME)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("プール内コネクションの最大生存時間(ミリ秒)")
+                .defaultValue("1800000")
+                .add()
+                .property().name(CONFIG_POOL_IDLE_TIMEOUT)
+                .label(CONFIG_POOL_IDLE_TIMEOUT)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("プール内コネクションのアイドルタイムアウト(ミリ秒)")
+                .defaultValue("600000")
+                .add()
+                .property().name(CONFIG_POOL_ACQUIRE_TIMEOUT)
+                .label(CONFIG_POOL_ACQUIRE_TIMEOUT)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("コネクション取得待ちのタイムアウト(ミリ秒)")
+                .defaultValue("5000")
+                .add()
+                .property().name(CONFIG_PREPARE_THRESHOLD)
+                .label(CONFIG_PREPARE_THRESHOLD)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("サーバサイドプリペアドステートメントに切り替えるまでの実行回数(PostgreSQL)")
+                .defaultValue("1")
+                .add()
+                .property().name(CONFIG_STATEMENT_CACHE_SIZE)
+                .label(CONFIG_STATEMENT_CACHE_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("コネクションごとにキャッシュするプリペアドステートメント数(PostgreSQL)")
+                .defaultValue("256")
+                .add()
+                .property().name(CONFIG_BLOOM_FILTER_SQL)
+                .label(CONFIG_BLOOM_FILTER_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("ブルームフィルタ作成用に全ユーザ名を取得するSQL(空の場合はフィルタを使用しない)\n"
+                        + "作り直しまでの間に追加されたユーザは存在しないと判定され、"
+                        + "最長で作り直し間隔(BloomFilterRefreshInterval)の間ログインできません")
+                .add()
+                .property().name(CONFIG_BLOOM_FILTER_FPP)
+                .label(CONFIG_BLOOM_FILTER_FPP)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("ブルームフィルタの誤判定率")
+                .defaultValue("0.01")
+                .add()
+                .property().name(CONFIG_BLOOM_FILTER_MAX_BYTES)
+                .label(CONFIG_BLOOM_FILTER_MAX_BYTES)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("ブルームフィルタのメモリ上限(バイト)\n超える場合は誤判定率の方が悪化します")
+                .defaultValue("8388608")
+                .add()
+                .property().name(CONFIG_BLOOM_FILTER_REFRESH_INTERVAL)
+                .label(CONFIG_BLOOM_FILTER_REFRESH_INTERVAL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("ブルームフィルタの作り直し間隔(秒)")
+                .defaultValue("600")
+                .add()
+                .property().name(CONFIG_BATCH_SQL)
+                .label(CONFIG_BATCH_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("複数ユーザをまとめて検索するSQL(空の場合は1件ずつ検索する)\n"
+                        + "${usernames}がユーザ名の配列のバインド変数になります\n"
+                        + "例: select username from users where username = ANY(${usernames})")
+                .add()
+                .property().name(CONFIG_BATCH_WINDOW)
+                .label(CONFIG_BATCH_WINDOW)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("検索をまとめる時間窓(ミリ秒)")
+                .defaultValue("2")
+                .add()
+                .property().name(CONFIG_BATCH_MAX_SIZE)
+                .label(CONFIG_BATCH_MAX_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("1回にまとめる最大件数")
+                .defaultValue("100")
+                .add()
+                .property().name(CONFIG_LIST_SQL)
+                .label(CONFIG_LIST_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("ユーザ一覧用SQL(空の場合は一覧に表示しない)\n"
+                        + "${after}が直前のページの最後のユーザ名、${limit}が取得件数になります\n"
+                        + "ユーザ名の昇順に並べてください")
+                .defaultValue("select username from pg_user"
+                        + " where username > ${after} order by username limit ${limit}")
+                .add()
+                .property().name(CONFIG_SEARCH_SQL)
+                .label(CONFIG_SEARCH_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("ユーザ検索用SQL(空の場合は検索しない)\n"
+                        + "${search}が検索文字列(LIKEパターン)、${after}と${limit}は一覧用SQLと同じです\n"
+                        + "${firstName}, ${lastName}を含めると、属性による検索の名・姓もSQLで絞り込みます"
+                        + "(LIKEパターン、条件がない場合はnull)\n"
+                        + "例: and (${lastName} is null or last_name ilike ${lastName})")
+                .defaultValue("select username from pg_user"
+                        + " where username like ${search} and username > ${after} order by username limit ${limit}")
+                .add()
+                .property().name(CONFIG_COUNT_SQL)
+                .label(CONFIG_COUNT_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("ユーザ数取得用SQL(空の場合は0件とする)")
+                .defaultValue("select count(*) from pg_user")
+                .add()
+                .property().name(CONFIG_FETCH_SIZE)
+                .label(CONFIG_FETCH_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("一覧・検索で使うカーソルのフェッチサイズ")
+                .defaultValue("100")
+                .add()
+                .property().name(CONFIG_LIST_MAX_RESULTS)
+                .label(CONFIG_LIST_MAX_RESULTS)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("件数指定のない一覧(グループの全メンバーなど)で返す最大件数\n超えた分は返さず、警告をログに出力します")
+                .defaultValue("1000")
+                .add()
+                .property().name(CONFIG_SYNC_SQL)
+                .label(CONFIG_SYNC_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("全件同期SQL(空の場合は全件同期しない)\n"
+                        + "列はログイン用SQLと同じです。結果はカーソルで少しずつ読み込みます\n"
+                        + "例: select username, email, attributes from users\n"
+                        + "${after}を含めると中断した同期を続きから再開します(ユーザ名で並べ替えてください)\n"
+                        + "例: select ... from users where username > ${after} order by username\n"
+                        + "並列数が2以上の場合は${partitions}と${partition}で分割してください\n"
+                        + "例: select ... from users where mod(abs(hashtext(username)), ${partitions}) = ${partition}")
+                .add()
+                .property().name(CONFIG_SYNC_PARALLELISM)
+                .label(CONFIG_SYNC_PARALLELISM)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("全件同期の並列数(スレッドごとにコネクションを1つ使うため、PoolSize未満にしてください)")
+                .defaultValue("1")
+                .add()
+                .property().name(CONFIG_CHANGED_SQL)
+                .label(CONFIG_CHANGED_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("差分同期SQL(空の場合は差分同期しない)\n"
+                        + "${since}が前回同期時刻のバインド変数になります\n"
+                        + "列はログイン用SQLと同じです。更新日時の列にインデックスを作成してください\n"
+                        + "例: select username, email, attributes from users where updated_at >= ${since}")
+                .add()
+                .property().name(CONFIG_DIGEST_SQL)
+                .label(CONFIG_DIGEST_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("ダイジェストによる差分同期SQL(更新日時の列がない場合に、差分同期SQLの代わりに使用する)\n"
+                        + "1列目にバケット(ユーザ名のMD5の先頭${digits}桁)、2列目にバケット内の全行のダイジェストを返してください\n"
+                        + "例: select substr(md5(username), 1, ${digits}),"
+                        + " md5(string_agg(md5(u::text), '' order by username)) from users u group by 1")
+                .add()
+                .property().name(CONFIG_BUCKET_SQL)
+                .label(CONFIG_BUCKET_SQL)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("ダイジェストが変化したバケットのユーザを返すSQL\n"
+                        + "${bucket}がバケットのバインド変数になります。"
+                        + "削除の検出のため、小文字のユーザ名順(lower(username) collate \"C\")に並べてください\n"
+                        + "例: select username, email, attributes from users"
+                        + " where substr(md5(username), 1, 3) = ${bucket} order by lower(username) collate \"C\"")
+                .add()
+                .property().name(CONFIG_BUCKET_DIGITS)
+                .label(CONFIG_BUCKET_DIGITS)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("ダイジェストによる差分同期のバケットの桁数(1～3、バケット数は16のべき乗)")
+                .defaultValue("3")
+                .add()
+                .property().name(CONFIG_SYNC_BATCH_SIZE)
+                .label(CONFIG_SYNC_BATCH_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("同期で1トランザクションに反映するユーザ数")
+                .defaultValue("500")
+                .add()
+                .property().name(CONFIG_SYNC_FETCH_SIZE)
+                .label(CONFIG_SYNC_FETCH_SIZE)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("同期で使うカーソルのフェッチサイズ")
+                .defaultValue("1000")
+                .add()
+                .property().name(CONFIG_SYNC_OVERLAP)
+                .label(CONFIG_SYNC_OVERLAP)
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .helpText("差分同期で前回同期時刻より遡る秒数(KeycloakとDBの時刻のずれを吸収します)")
+                .defaultValue("60")
+                .add()
                 .build();
     }
 
@@ -101,6 +476,76 @@ public class DatabaseUserStorageProviderFactory implements
         String username = requiredValue(config, CONFIG_USERNAME);
         String password = requiredValue(config, CONFIG_PASSWORD);
         requiredValue(config, CONFIG_SQL);
+        intValue(config, CONFIG_POOL_SIZE, 10);
+        longValue(config, CONFIG_POOL_MAX_LIFETIME, 1800000L);
+        longValue(config, CONFIG_POOL_IDLE_TIMEOUT, 600000L);
+        longValue(config, CONFIG_POOL_ACQUIRE_TIMEOUT, 5000L);
+        intValue(config, CONFIG_PREPARE_THRESHOLD, 1);
+        intValue(config, CONFIG_STATEMENT_CACHE_SIZE, 256);
+        double fpp = doubleValue(config, CONFIG_BLOOM_FILTER_FPP, 0.01);
+        if (fpp <= 0 || fpp >= 1) {
+            throw new ComponentValidationException(
+                    String.format("%s must be between 0 and 1.", CONFIG_BLOOM_FILTER_FPP));
+        }
+        longValue(config, CONFIG_BLOOM_FILTER_MAX_BYTES, 8388608L);
+        longValue(config, CONFIG_BLOOM_FILTER_REFRESH_INTERVAL, 600L);
+        longValue(config, CONFIG_BATCH_WINDOW, 2L);
+        intValue(config, CONFIG_BATCH_MAX_SIZE, 100);
+        intValue(config, CONFIG_FETCH_SIZE, 100);
+        intValue(config, CONFIG_LIST_MAX_RESULTS, 1000);
+        intValue(config, CONFIG_SYNC_BATCH_SIZE, 500);
+        intValue(config, CONFIG_SYNC_FETCH_SIZE, 1000);
+        int digits = intValue(config, CONFIG_BUCKET_DIGITS, 3);
+        if (digits < 1 || digits > 3) {
+            throw new ComponentValidationException(
+                    String.format("%s must be between 1 and 3.", CONFIG_BUCKET_DIGITS));
+        }
+        if ((optionalSql(config, CONFIG_DIGEST_SQL) == null) != (optionalSql(config, CONFIG_BUCKET_SQL) == null)) {
+            throw new ComponentValidationException(
+                    String.format("%s and %s must be set together.", CONFIG_DIGEST_SQL, CONFIG_BUCKET_SQL));
+        }
+        int parallelism = intValue(config, CONFIG_SYNC_PARALLELISM, 1);
+        if (parallelism > 1) {
+            if (parallelism >= intValue(config, CONFIG_POOL_SIZE, 10)) {
+                throw new ComponentValidationException(
+                        String.format("%s must be less than %s.", CONFIG_SYNC_PARALLELISM, CONFIG_POOL_SIZE));
+            }
+            NamedSql syncSql = optionalSql(config, CONFIG_SYNC_SQL);
+            if (syncSql != null && !syncSql.getParameterNames().containsAll(
+                    List.of(UserSynchronizer.KEY_PARTITIONS, UserSynchronizer.KEY_PARTITION))) {
+                throw new ComponentValidationException(String.format(
+                        "%s must contain ${partitions} and ${partition} when %s is greater than 1.",
+                        CONFIG_SYNC_SQL, CONFIG_SYNC_PARALLELISM));
+            }
+        }
+        longValue(config, CONFIG_SYNC_OVERLAP, 60L);
+        NamedSql verifySql = optionalSql(config, CONFIG_VERIFY_SQL);
+        if (verifySql != null && !verifySql.getParameterNames().contains("password")) {
+            throw new ComponentValidationException(
+                    String.format("%s must contain ${password}.", CONFIG_VERIFY_SQL));
+        }
+        NamedSql roleSql = optionalSql(config, CONFIG_ROLE_SQL);
+        if (roleSql != null && !roleSql.getParameterNames().contains(RoleResolver.KEY_USERNAME)) {
+            throw new ComponentValidationException(
+                    String.format("%s must contain ${username}.", CONFIG_ROLE_SQL));
+        }
+        NamedSql groupSql = optionalSql(config, CONFIG_GROUP_SQL);
+        if (groupSql != null && !groupSql.getParameterNames().contains(GroupResolver.KEY_USERNAME)) {
+            throw new ComponentValidationException(
+                    String.format("%s must contain ${username}.", CONFIG_GROUP_SQL));
+        }
+        NamedSql membersSql = optionalSql(config, CONFIG_GROUP_MEMBERS_SQL);
+        if (membersSql != null && !membersSql.getParameterNames().containsAll(List.of(
+                KeysetUserQuery.KEY_GROUP, KeysetUserQuery.KEY_AFTER, KeysetUserQuery.KEY_LIMIT))) {
+            throw new ComponentValidationException(
+                    String.format("%s must contain ${group}, ${after} and ${limit}.", CONFIG_GROUP_MEMBERS_SQL));
+        }
+        try {
+            attributeGroups(config);
+        } catch (IllegalArgumentException e) {
+            throw new ComponentValidationException(
+                    String.format("%s is invalid: %s", CONFIG_ATTRIBUTE_GROUPS, e.getMessage()), e);
+        }
         testConnection(url, username, password);
     }
 
@@ -122,6 +567,70 @@ public class DatabaseUserStorageProviderFactory implements
         return EnvUtil.replace(value);
     }
 
+    /**
+     * 設定内容から数値の入力内容を取得して返します
+     *
+     * @param config       設定内容
+     * @param key          入力内容取得のキー
+     * @param defaultValue 未入力時の値
+     * @return 入力内容
+     * @throws ComponentValidationException 数値でなかった場合の例外
+     */
+    private int intValue(ComponentModel config, String key, int defaultValue)
+            throws ComponentValidationException {
+        return (int) longValue(config, key, defaultValue);
+    }
+
+    /**
+     * 設定内容から数値の入力内容を取得して返します
+     *
+     * @param config       設定内容
+     * @param key          入力内容取得のキー
+     * @param defaultValue 未入力時の値
+     * @return 入力内容
+     * @throws ComponentValidationException 数値でなかった場合の例外
+     */
+    private long longValue(ComponentModel config, String key, long defaultValue)
+            throws ComponentValidationException {
+        String value = value(config, key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            long number = Long.parseLong(value.trim());
+            if (number < 0) {
+                throw new NumberFormatException(value);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new ComponentValidationException(
+                    String.format("%s must be a non-negative number.", key), e);
+        }
+    }
+
+    /**
+     * 設定内容から小数の入力内容を取得して返します
+     *
+     * @param config       設定内容
+     * @param key          入力内容取得のキー
+     * @param defaultValue 未入力時の値
+     * @return 入力内容
+     * @throws ComponentValidationException 数値でなかった場合の例外
+     */
+    private double doubleValue(ComponentModel config, String key, double defaultValue)
+            throws ComponentValidationException {
+        String value = value(config, key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ComponentValidationException(
+                    String.format("%s must be a number.", key), e);
+        }
+    }
+
     /**
      * 設定内容から入力内容を取得して返します
      *
@@ -144,8 +653,7 @@ public class DatabaseUserStorageProviderFactory implements
      */
     private void testConnection(String url, String username, String password)
             throws ComponentValidationException {
-        try {
-            DriverManager.getConnection(url, username, password);
+        try (Connection ignore = DriverManager.getConnection(url, username, password)) {
             LOG.debugv("Connection succeeded: url={0}, username={1}", url, username);
         } catch (SQLException e) {
             LOG.error("Connection refused.", e);
@@ -153,6 +661,59 @@ public class DatabaseUserStorageProviderFactory implements
         }
     }
 
+    /**
+     * ファクトリを初期化します
+     * コネクションプールはコンポーネントの設定が必要なため、最初のプロバイダ生成時に作成します
+     *
+     * @param config SPI設定内容
+     */
+    @Override
+    public void init(Config.Scope config) {
+        userCache = new UserCache(
+                config.getLong(SPI_USER_CACHE_MAX_SIZE, 10000L),
+                Duration.ofSeconds(config.getLong(SPI_USER_CACHE_TTL, 300L)),
+                Duration.ofSeconds(config.getLong(SPI_USER_MISSING_CACHE_TTL, 30L)));
+        passwordVerifier = new PasswordVerifier(
+                config.getInt(SPI_HASH_THREADS, Runtime.getRuntime().availableProcessors()),
+                config.getInt(SPI_HASH_QUEUE_SIZE, 100),
+                config.getInt(SPI_HASH_MEMORY_BUDGET_KB, 262144),
+                config.getLong(SPI_HASH_TIMEOUT, 5000L),
+                metrics);
+        long verifiedTtl = config.getLong(SPI_VERIFIED_CREDENTIAL_CACHE_TTL, 0L);
+        if (verifiedTtl > 0) {
+            verifiedCredentialCache = new VerifiedCredentialCache(
+                    config.getLong(SPI_VERIFIED_CREDENTIAL_CACHE_MAX_SIZE, 10000L),
+                    Duration.ofSeconds(verifiedTtl));
+        }
+        long roleTtl = config.getLong(SPI_ROLE_CACHE_TTL, 300L);
+        if (roleTtl > 0) {
+            roleCache = new MappingCache<>(
+                    config.getLong(SPI_ROLE_CACHE_MAX_SIZE, 10000L),
+                    Duration.ofSeconds(roleTtl));
+        }
+        long groupTtl = config.getLong(SPI_GROUP_CACHE_TTL, 300L);
+        if (groupTtl > 0) {
+            groupCache = new MappingCache<>(
+                    config.getLong(SPI_GROUP_CACHE_MAX_SIZE, 10000L),
+                    Duration.ofSeconds(groupTtl));
+        }
+        LOG.debugv("Initialized: {0}", PROVIDER_NAME);
+    }
+
+    /**
+     * 全ファクトリの初期化後に呼び出されます
+     *
+     * @param factory セッションファクトリ
+     */
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, PROVIDER_NAME + "-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     /**
      * プロバイダを生成します
      *
@@ -162,15 +723,342 @@ public class DatabaseUserStorageProviderFactory implements
      */
     @Override
     public DatabaseUserStorageProvider create(KeycloakSession session, ComponentModel model) {
+        DatabaseUserStore store = acquireStore(model);
         try {
-            String url = requiredValue(model, CONFIG_URL);
-            String username = requiredValue(model, CONFIG_USERNAME);
-            String password = requiredValue(model, CONFIG_PASSWORD);
-            return new DatabaseUserStorageProvider(session, model,
-                    DriverManager.getConnection(url, username, password),
-                    requiredValue(model, CONFIG_SQL));
+            return new DatabaseUserStorageProvider(session, model, store);
         } catch (Exception e) {
+            store.release();
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * コンポーネントに対応するデータベース資源の利用を開始します
+     * 取得した直後に設定変更で解放された場合は、作り直されたデータベース資源を取得し直します
+     * 利用後は DatabaseUserStore#release() を呼び出してください
+     *
+     * @param model プロバイダ設定内容
+     * @return 利用を開始したデータベース資源
+     */
+    private DatabaseUserStore acquireStore(ComponentModel model) {
+        while (true) {
+            DatabaseUserStore store = store(model);
+            if (store.acquire()) {
+                return store;
+            }
+        }
+    }
+
+    /**
+     * コンポーネントに対応するデータベース資源を返します
+     * 設定が変更されていた場合は作り直し、古いデータベース資源をファクトリの管理から外します
+     * 古いコネクションプールは、それを利用中のプロバイダ・同期処理がすべて終了してから閉じます
+     *
+     * @param model プロバイダ設定内容
+     * @return データベース資源
+     */
+    private DatabaseUserStore store(ComponentModel model) {
+        String fingerprint = fingerprint(model);
+        DatabaseUserStore current = stores.get(model.getId());
+        if (current != null && current.matches(fingerprint)) {
+            return current;
+        }
+        DatabaseUserStore[] replaced = new DatabaseUserStore[1];
+        DatabaseUserStore store = stores.compute(model.getId(), (id, old) -> {
+            if (old != null && old.matches(fingerprint)) {
+                return old;
+            }
+            replaced[0] = old;
+            DatabaseUserStore created = new DatabaseUserStore(id, fingerprint, createDataSource(model),
+                    NamedSql.compile(requiredValue(model, CONFIG_SQL)),
+                    optionalSql(model, CONFIG_LOGIN_SQL),
+                    optionalSql(model, CONFIG_EMAIL_SQL),
+                    optionalSql(model, CONFIG_VERIFY_SQL),
+                    attributeGroups(model),
+                    optionalSql(model, CONFIG_ROLE_SQL),
+                    optionalSql(model, CONFIG_GROUP_SQL),
+                    userCache,
+                    singleFlight,
+                    createBloomFilter(model),
+                    createBatchLoader(model),
+                    new KeysetUserQuery(
+                            optionalSql(model, CONFIG_LIST_SQL),
+                            optionalSql(model, CONFIG_SEARCH_SQL),
+                            optionalSql(model, CONFIG_COUNT_SQL),
+                            optionalSql(model, CONFIG_GROUP_MEMBERS_SQL),
+                            intValue(model, CONFIG_FETCH_SIZE, 100),
+                            intValue(model, CONFIG_LIST_MAX_RESULTS, 1000)),
+                    passwordVerifier,
+                    verifiedCredentialCache,
+                    roleCache,
+                    groupCache,
+                    metrics);
+            created.scheduleBloomFilterRefresh(scheduler,
+                    Math.max(1L, longValue(model, CONFIG_BLOOM_FILTER_REFRESH_INTERVAL, 600L)));
+            return created;
+        });
+        if (replaced[0] != null) {
+            replaced[0].close();
+        }
+        return store;
+    }
+
+    /**
+     * 設定内容からコネクションプールを作成します
+     *
+     * @param model プロバイダ設定内容
+     * @return コネクションプール
+     */
+    private HikariDataSource createDataSource(ComponentModel model) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(PROVIDER_NAME + "-" + model.getId());
+        config.setJdbcUrl(requiredValue(model, CONFIG_URL));
+        config.setUsername(requiredValue(model, CONFIG_USERNAME));
+        config.setPassword(requiredValue(model, CONFIG_PASSWORD));
+        config.setMaximumPoolSize(intValue(model, CONFIG_POOL_SIZE, 10));
+        config.setMaxLifetime(longValue(model, CONFIG_POOL_MAX_LIFETIME, 1800000L));
+        config.setIdleTimeout(longValue(model, CONFIG_POOL_IDLE_TIMEOUT, 600000L));
+        config.setConnectionTimeout(longValue(model, CONFIG_POOL_ACQUIRE_TIMEOUT, 5000L));
+        config.setReadOnly(true);
+        // 起動時にDBへ接続できなくてもKeycloakの起動は妨げない
+        config.setInitializationFailTimeout(-1);
+        if (config.getJdbcUrl().startsWith("jdbc:postgresql:")) {
+            // プリペアドステートメントはドライバがコネクション単位でキャッシュし、サーバ側の実行計画を再利用する
+            config.addDataSourceProperty("prepareThreshold",
+                    intValue(model, CONFIG_PREPARE_THRESHOLD, 1));
+            config.addDataSourceProperty("preparedStatementCacheQueries",
+                    intValue(model, CONFIG_STATEMENT_CACHE_SIZE, 256));
+        }
+        LOG.debugv("Creating connection pool: component={0}", model.getId());
+        return new HikariDataSource(config);
+    }
+
+    /**
+     * 設定内容から任意入力のSQLを変換します
+     *
+     * @param model プロバイダ設定内容
+     * @param key   入力内容取得のキー
+     * @return 変換したSQL(未入力の場合はnull)
+     */
+    private NamedSql optionalSql(ComponentModel model, String key) {
+        String sql = value(model, key);
+        return sql == null || sql.isBlank() ? null : NamedSql.compile(sql);
+    }
+
+    /**
+     * 設定内容から属性のグループを作成します
+     *
+     * @param model プロバイダ設定内容
+     * @return 属性のグループ(未入力の場合はnull)
+     * @throws IllegalArgumentException 設定内容に問題があった場合の例外
+     */
+    private AttributeGroups attributeGroups(ComponentModel model) {
+        String json = value(model, CONFIG_ATTRIBUTE_GROUPS);
+        return json == null || json.isBlank() ? null : AttributeGroups.parse(json);
+    }
+
+    /**
+     * 設定内容からブルームフィルタを作成します
+     *
+     * @param model プロバイダ設定内容
+     * @return ブルームフィルタ(SQL未設定の場合はnull)
+     */
+    private UsernameBloomFilter createBloomFilter(ComponentModel model) {
+        NamedSql sql = optionalSql(model, CONFIG_BLOOM_FILTER_SQL);
+        if (sql == null) {
+            return null;
+        }
+        return new UsernameBloomFilter(sql,
+                doubleValue(model, CONFIG_BLOOM_FILTER_FPP, 0.01),
+                longValue(model, CONFIG_BLOOM_FILTER_MAX_BYTES, 8388608L));
+    }
+
+    /**
+     * 設定内容から検索をまとめるローダを作成します
+     *
+     * @param model プロバイダ設定内容
+     * @return ローダ(SQL未設定の場合はnull)
+     */
+    private BatchUserLoader createBatchLoader(ComponentModel model) {
+        NamedSql sql = optionalSql(model, CONFIG_BATCH_SQL);
+        if (sql == null) {
+            return null;
+        }
+        return new BatchUserLoader(sql,
+                longValue(model, CONFIG_BATCH_WINDOW, 2L),
+                intValue(model, CONFIG_BATCH_MAX_SIZE, 100));
+    }
+
+    /**
+     * 本プロバイダの設定項目だけから設定内容の指紋を作成します
+     * (lastSync など Keycloak が更新する項目の変更ではプールを作り直さないため)
+     *
+     * @param model プロバイダ設定内容
+     * @return 設定内容の指紋
+     */
+    private String fingerprint(ComponentModel model) {
+        return configMetadata.stream()
+                .map(p -> p.getName() + "=" + model.getConfig().getList(p.getName()))
+                .collect(Collectors.joining("\n"));
+    }
+
+    /**
+     * 全ユーザを同期します
+     * 全件同期SQLの結果をカーソルで少しずつ読み込み、一定件数ごとに短いトランザクションで反映するため、
+     * テーブルの大きさに関わらずメモリ使用量は一定です
+     *
+     * @param sessionFactory セッションファクトリ
+     * @param realmId        レルムID
+     * @param model          プロバイダ設定内容
+     * @return 同期結果
+     */
+    @Override
+    public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId,
+                                      UserStorageProviderModel model) {
+        NamedSql sql = optionalSql(model, CONFIG_SYNC_SQL);
+        if (sql == null) {
+            LOG.debugv("{0} is not set, full sync skipped: component={1}", CONFIG_SYNC_SQL, model.getId());
+            return SynchronizationResult.ignored();
+        }
+        int parallelism = intValue(model, CONFIG_SYNC_PARALLELISM, 1);
+        long start = System.currentTimeMillis();
+        SyncCheckpoints checkpoints = new SyncCheckpoints(sessionFactory, realmId, model);
+        SynchronizationResult result;
+        DatabaseUserStore store = acquireStore(model);
+        try {
+            UserSynchronizer synchronizer = synchronizer(sessionFactory, realmId, model, store);
+            result = parallelism > 1
+                    ? synchronizer.runPartitioned(sql, parallelism, checkpoints)
+                    : synchronizer.run(sql, Collections.emptyMap(), checkpoints, SyncCheckpoints.key(1, 0));
+        } finally {
+            store.release();
+        }
+        // 最後まで完了したので、次回は最初から同期する
+        checkpoints.clear();
+        LOG.infov("Full sync finished: component={0}, parallelism={1}, {2}, elapsed={3}ms",
+                model.getId(), parallelism, result.getStatus(), System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * 前回同期以降に変更されたユーザを同期します
+     * 差分同期SQLで変更されたユーザだけを読み込むため、処理量はテーブルの大きさではなく変更件数に比例します
+     *
+     * @param lastSync       前回同期時刻
+     * @param sessionFactory セッションファクトリ
+     * @param realmId        レルムID
+     * @param model          プロバイダ設定内容
+     * @return 同期結果
+     */
+    @Override
+    public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory,
+                                           String realmId, UserStorageProviderModel model) {
+        NamedSql sql = optionalSql(model, CONFIG_CHANGED_SQL);
+        NamedSql digestSql = optionalSql(model, CONFIG_DIGEST_SQL);
+        NamedSql bucketSql = optionalSql(model, CONFIG_BUCKET_SQL);
+        if (sql == null && digestSql != null && bucketSql != null) {
+            long start = System.currentTimeMillis();
+            SynchronizationResult result;
+            DatabaseUserStore store = acquireStore(model);
+            try {
+                result = new DigestSynchronizer(sessionFactory, realmId, model, store,
+                        synchronizer(sessionFactory, realmId, model, store), digestSql, bucketSql,
+                        intValue(model, CONFIG_BUCKET_DIGITS, 3)).run();
+            } finally {
+                store.release();
+            }
+            LOG.infov("Digest sync finished: component={0}, {1}, elapsed={2}ms",
+                    model.getId(), result.getStatus(), System.currentTimeMillis() - start);
+            return result;
+        }
+        if (sql == null) {
+            LOG.debugv("{0} is not set, changed users sync skipped: component={1}",
+                    CONFIG_CHANGED_SQL, model.getId());
+            return SynchronizationResult.ignored();
+        }
+        long overlap = longValue(model, CONFIG_SYNC_OVERLAP, 60L) * 1000L;
+        Timestamp since = new Timestamp(Math.max(0L, (lastSync == null ? 0L : lastSync.getTime()) - overlap));
+        long start = System.currentTimeMillis();
+        SynchronizationResult result;
+        DatabaseUserStore store = acquireStore(model);
+        try {
+            result = synchronizer(sessionFactory, realmId, model, store).run(sql, Map.of("since", since));
+        } finally {
+            store.release();
+        }
+        LOG.infov("Changed users sync finished: component={0}, since={1}, {2}, elapsed={3}ms",
+                model.getId(), since, result.getStatus(), System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * 同期処理を作成します
+     *
+     * @param sessionFactory セッションファクトリ
+     * @param realmId        レルムID
+     * @param model          プロバイダ設定内容
+     * @param store          利用を開始したデータベース資源
+     * @return 同期処理
+     */
+    private UserSynchronizer synchronizer(KeycloakSessionFactory sessionFactory, String realmId,
+                                          UserStorageProviderModel model, DatabaseUserStore store) {
+        // ダイジェストによる差分同期を使う場合は、削除の検出用にバケットを記録する
+        int digits = optionalSql(model, CONFIG_DIGEST_SQL) == null ? 0 : intValue(model, CONFIG_BUCKET_DIGITS, 3);
+        return new UserSynchronizer(sessionFactory, realmId, model, store,
+                intValue(model, CONFIG_SYNC_BATCH_SIZE, 500),
+                intValue(model, CONFIG_SYNC_FETCH_SIZE, 1000),
+                digits);
+    }
+
+    /**
+     * 設定削除時にコンポーネントのデータベース資源を解放します
+     *
+     * @param session セッション情報
+     * @param realm   レルム
+     * @param model   プロバイダ設定内容
+     */
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        DatabaseUserStore store = stores.remove(model.getId());
+        if (store != null) {
+            store.close();
+        }
+        metrics.remove(model.getId());
+    }
+
+    /**
+     * ユーザ情報キャッシュのヒット数・ミス数・追い出し数を返します
+     *
+     * @return 統計情報
+     */
+    public CacheStats getUserCacheStats() {
+        return userCache.stats();
+    }
+
+    /**
+     * 指定したコンポーネントのメトリクスを Prometheus テキスト形式で返します
+     *
+     * @param componentIds  出力するコンポーネントID
+     * @param includeShared 全コンポーネントで共有するユーザ情報キャッシュのメトリクスも出力するか
+     * @return Prometheus テキスト形式のメトリクス
+     */
+    public String scrapeMetrics(Set<String> componentIds, boolean includeShared) {
+        return metrics.scrape(stores.values(), includeShared ? userCache : null, componentIds);
+    }
+
+    /**
+     * ファクトリを解放します
+     * 全コンポーネントのコネクションプールを解放します
+     */
+    @Override
+    public void close() {
+        stores.values().forEach(DatabaseUserStore::close);
+        stores.clear();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (passwordVerifier != null) {
+            passwordVerifier.close();
+        }
+    }
 }
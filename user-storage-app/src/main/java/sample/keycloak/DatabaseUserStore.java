@@ -0,0 +1,470 @@
+package sample.keycloak;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.jboss.logging.Logger;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * プロバイダ設定(コンポーネント)単位で共有されるデータベース資源
+ */
+public class DatabaseUserStore implements AutoCloseable {
+
+    // ロガー
+    private static final Logger LOG = Logger.getLogger(DatabaseUserStore.class);
+    // コンポーネントID
+    private final String componentId;
+    // 作成時の設定内容(設定変更の検知用)
+    private final String fingerprint;
+    // コネクションプール
+    private final HikariDataSource dataSource;
+    // ユーザ検索用SQL
+    private final NamedSql userSql;
+    // ログイン用SQL(未設定の場合はnull)
+    private final NamedSql loginSql;
+    // メールアドレス検索用SQL(未設定の場合はnull)
+    private final NamedSql emailSql;
+    // パスワード照合SQL(未設定の場合はnull)
+    private final NamedSql verifySql;
+    // 必要になった時点で読み込む属性のグループ(未設定の場合はnull)
+    private final AttributeGroups attributeGroups;
+    // ロール取得SQL(未設定の場合はnull)
+    private final NamedSql roleSql;
+    // グループ取得SQL(未設定の場合はnull)
+    private final NamedSql groupSql;
+    // ファクトリ全体で共有するユーザ情報キャッシュ
+    private final UserCache userCache;
+    // ファクトリ全体で共有する同時検索のまとめ役
+    private final SingleFlight<UserCache.Key, UserRecord> singleFlight;
+    // 存在するユーザ名のブルームフィルタ(無効の場合はnull)
+    private final UsernameBloomFilter bloomFilter;
+    // 検索をまとめて問い合わせるローダ(無効の場合はnull)
+    private final BatchUserLoader batchLoader;
+    // ユーザ一覧・検索(ページング)
+    private final KeysetUserQuery userQuery;
+    // ファクトリ全体で共有するパスワード検証
+    private final PasswordVerifier passwordVerifier;
+    // ファクトリ全体で共有する照合成功済みパスワードのキャッシュ(無効の場合はnull)
+    private final VerifiedCredentialCache verifiedCredentialCache;
+    // ファクトリ全体で共有するロールの割り当てのキャッシュ(無効の場合はnull)
+    private final MappingCache<RoleMapping> roleCache;
+    // ファクトリ全体で共有するグループの所属のキャッシュ(無効の場合はnull)
+    private final MappingCache<String> groupCache;
+    // ファクトリ全体で共有するメトリクス
+    private final UserStorageMetrics metrics;
+    // ブルームフィルタの定期更新(未設定の場合はnull)
+    private volatile ScheduledFuture<?> bloomFilterRefresh;
+    // 利用者数(ファクトリの管理分を含む。0 になるとコネクションプールを閉じる)
+    private final AtomicInteger holders = new AtomicInteger(1);
+    // ファクトリの管理から外されたか
+    private final AtomicBoolean retired = new AtomicBoolean();
+
+    /**
+     * コンストラクタ
+     *
+     * @param componentId コンポーネントID
+     * @param fingerprint 作成時の設定内容
+     * @param dataSource  コネクションプール
+     * @param userSql     ユーザ検索用SQL
+     * @param loginSql    ログイン用SQL(未設定の場合はnull)
+     * @param emailSql    メールアドレス検索用SQL(未設定の場合はnull)
+     * @param verifySql   パスワード照合SQL(未設定の場合はnull)
+     * @param attributeGroups 属性のグループ(未設定の場合はnull)
+     * @param roleSql     ロール取得SQL(未設定の場合はnull)
+     * @param groupSql    グループ取得SQL(未設定の場合はnull)
+     * @param userCache    ユーザ情報キャッシュ
+     * @param singleFlight 同時検索のまとめ役
+     * @param bloomFilter  存在するユーザ名のブルームフィルタ(無効の場合はnull)
+     * @param batchLoader  検索をまとめて問い合わせるローダ(無効の場合はnull)
+     * @param userQuery    ユーザ一覧・検索
+     * @param passwordVerifier パスワード検証
+     * @param verifiedCredentialCache 照合成功済みパスワードのキャッシュ(無効の場合はnull)
+     * @param roleCache    ロールの割り当てのキャッシュ(無効の場合はnull)
+     * @param groupCache   グループの所属のキャッシュ(無効の場合はnull)
+     * @param metrics      メトリクス
+     */
+    public DatabaseUserStore(
+            String componentId,
+            String fingerprint,
+            HikariDataSource dataSource,
+            NamedSql userSql,
+            NamedSql loginSql,
+            NamedSql emailSql,
+            NamedSql verifySql,
+            AttributeGroups attributeGroups,
+            NamedSql roleSql,
+            NamedSql groupSql,
+            UserCache userCache,
+            SingleFlight<UserCache.Key, UserRecord> singleFlight,
+            UsernameBloomFilter bloomFilter,
+            BatchUserLoader batchLoader,
+            KeysetUserQuery userQuery,
+            PasswordVerifier passwordVerifier,
+            VerifiedCredentialCache verifiedCredentialCache,
+            MappingCache<RoleMapping> roleCache,
+            MappingCache<String> groupCache,
+            UserStorageMetrics metrics) {
+        this.componentId = componentId;
+        this.fingerprint = fingerprint;
+        this.dataSource = dataSource;
+        this.userSql = userSql;
+        this.loginSql = loginSql;
+        this.emailSql = emailSql;
+        this.verifySql = verifySql;
+        this.attributeGroups = attributeGroups;
+        this.roleSql = roleSql;
+        this.groupSql = groupSql;
+        this.userCache = userCache;
+        this.singleFlight = singleFlight;
+        this.bloomFilter = bloomFilter;
+        this.batchLoader = batchLoader;
+        this.userQuery = userQuery;
+        this.passwordVerifier = passwordVerifier;
+        this.verifiedCredentialCache = verifiedCredentialCache;
+        this.roleCache = roleCache;
+        this.groupCache = groupCache;
+        this.metrics = metrics;
+    }
+
+    /**
+     * コンポーネントIDを返します
+     *
+     * @return コンポーネントID
+     */
+    public String getComponentId() {
+        return componentId;
+    }
+
+    /**
+     * ユーザ検索用SQLを返します
+     *
+     * @return ユーザ検索用SQL
+     */
+    public NamedSql getUserSql() {
+        return userSql;
+    }
+
+    /**
+     * ログイン用SQLを返します
+     * ユーザ情報・パスワードハッシュ・属性・ロールを1回の問い合わせで取得するSQLです
+     *
+     * @return ログイン用SQL(未設定の場合はnull)
+     */
+    public NamedSql getLoginSql() {
+        return loginSql;
+    }
+
+    /**
+     * メールアドレス検索用SQLを返します
+     *
+     * @return メールアドレス検索用SQL(未設定の場合はnull)
+     */
+    public NamedSql getEmailSql() {
+        return emailSql;
+    }
+
+    /**
+     * パスワード照合SQLを返します
+     * 設定されている場合は、パスワードハッシュを取得せずにDB側で照合します
+     *
+     * @return パスワード照合SQL(未設定の場合はnull)
+     */
+    public NamedSql getVerifySql() {
+        return verifySql;
+    }
+
+    /**
+     * 必要になった時点で読み込む属性のグループを返します
+     *
+     * @return 属性のグループ(未設定の場合はnull)
+     */
+    public AttributeGroups getAttributeGroups() {
+        return attributeGroups;
+    }
+
+    /**
+     * ロール取得SQLを返します
+     *
+     * @return ロール取得SQL(未設定の場合はnull)
+     */
+    public NamedSql getRoleSql() {
+        return roleSql;
+    }
+
+    /**
+     * グループ取得SQLを返します
+     *
+     * @return グループ取得SQL(未設定の場合はnull)
+     */
+    public NamedSql getGroupSql() {
+        return groupSql;
+    }
+
+    /**
+     * メールアドレスでのユーザ情報キャッシュのキーを作成します
+     *
+     * @param realmId レルムID
+     * @param email   正規化したメールアドレス
+     * @return キャッシュのキー
+     */
+    public UserCache.Key emailCacheKey(String realmId, String email) {
+        return new UserCache.Key(componentId, realmId, UserCache.Kind.EMAIL, email);
+    }
+
+    /**
+     * ユーザ情報キャッシュのキーを作成します
+     *
+     * @param realmId  レルムID
+     * @param username ユーザ名
+     * @return キャッシュのキー
+     */
+    public UserCache.Key cacheKey(String realmId, String username) {
+        return new UserCache.Key(componentId, realmId, username);
+    }
+
+    /**
+     * ユーザ情報キャッシュを返します
+     *
+     * @return ユーザ情報キャッシュ
+     */
+    public UserCache getUserCache() {
+        return userCache;
+    }
+
+    /**
+     * 外部DBからユーザ情報を読み込み、結果をキャッシュします
+     * 同じキーの読み込みが他のセッションで実行中であれば、その結果を待って共有します
+     *
+     * @param key    キャッシュのキー
+     * @param loader 外部DBからの読み込み処理
+     * @return ユーザ情報(存在しなければnull)
+     */
+    public UserRecord load(UserCache.Key key, Callable<UserRecord> loader) {
+        return load(key, loader, false);
+    }
+
+    /**
+     * 外部DBからユーザ情報を読み込み、結果をキャッシュします
+     * 同じキーの読み込みが他のセッションで実行中であれば、その結果を待って共有します
+     * refresh の読み込みは、パスワードハッシュを持つ結果だけを受け取るよう refresh の読み込み同士でまとめます
+     *
+     * @param key     キャッシュのキー
+     * @param loader  外部DBからの読み込み処理
+     * @param refresh true:キャッシュを使わず外部DBから読み込む(パスワードハッシュが必要な場合)
+     * @return ユーザ情報(存在しなければnull)
+     */
+    public UserRecord load(UserCache.Key key, Callable<UserRecord> loader, boolean refresh) {
+        return singleFlight.execute(refresh ? key.forCredential() : key, () -> {
+            // 直前に完了した読み込みの結果があればそれを使う
+            UserRecord cached = refresh ? null : userCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            UserRecord record = loader.call();
+            if (record == null) {
+                userCache.putMissing(key);
+            } else {
+                userCache.put(key, record);
+            }
+            return record;
+        });
+    }
+
+    /**
+     * 他の検索とまとめて問い合わせるモードかを返します
+     *
+     * @return true:まとめて問い合わせる<br>false:1件ずつ問い合わせる
+     */
+    public boolean isBatching() {
+        return batchLoader != null;
+    }
+
+    /**
+     * 他のセッションの検索とまとめてユーザ情報を問い合わせます
+     *
+     * @param username ユーザ名
+     * @return ユーザ情報(見つからなければnull)
+     */
+    public UserRecord loadBatched(String username) {
+        return batchLoader.load(this, username);
+    }
+
+    /**
+     * ユーザ一覧・検索を返します
+     *
+     * @return ユーザ一覧・検索
+     */
+    public KeysetUserQuery getUserQuery() {
+        return userQuery;
+    }
+
+    /**
+     * パスワードを外部DBのハッシュと照合します
+     *
+     * @param password パスワード(照合後に消去します)
+     * @param encoded  外部DBのハッシュ文字列
+     * @return true:一致する<br>false:一致しない、または照合できなかった
+     */
+    public boolean verifyPassword(char[] password, String encoded) {
+        return passwordVerifier.verify(componentId, password, encoded);
+    }
+
+    /**
+     * 照合成功済みパスワードのキャッシュを返します
+     *
+     * @return 照合成功済みパスワードのキャッシュ(無効の場合はnull)
+     */
+    public VerifiedCredentialCache getVerifiedCredentialCache() {
+        return verifiedCredentialCache;
+    }
+
+    /**
+     * ロールの割り当てのキャッシュを返します
+     *
+     * @return ロールの割り当てのキャッシュ(無効の場合はnull)
+     */
+    public MappingCache<RoleMapping> getRoleCache() {
+        return roleCache;
+    }
+
+    /**
+     * グループの所属のキャッシュを返します
+     *
+     * @return グループの所属のキャッシュ(無効の場合はnull)
+     */
+    public MappingCache<String> getGroupCache() {
+        return groupCache;
+    }
+
+    /**
+     * ユーザ名が外部DBに存在する可能性があるかを判定します
+     *
+     * @param username ユーザ名
+     * @return true:存在するかもしれない<br>false:確実に存在しない
+     */
+    public boolean mightExist(String username) {
+        return bloomFilter == null || bloomFilter.mightContain(username);
+    }
+
+    /**
+     * ブルームフィルタの定期的な作り直しを開始します
+     *
+     * @param scheduler 実行に使うスケジューラ
+     * @param interval  作り直しの間隔(秒)
+     */
+    public void scheduleBloomFilterRefresh(ScheduledExecutorService scheduler, long interval) {
+        if (bloomFilter != null) {
+            bloomFilterRefresh = scheduler.scheduleWithFixedDelay(
+                    () -> bloomFilter.refresh(dataSource), 0, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 作成時の設定内容と一致するかを判定します
+     *
+     * @param fingerprint 現在の設定内容
+     * @return true:一致する<br>false:設定が変更されている
+     */
+    public boolean matches(String fingerprint) {
+        return this.fingerprint.equals(fingerprint);
+    }
+
+    /**
+     * プールからコネクションを借り受けます
+     * 利用後は close() でプールに返却してください
+     *
+     * @return SQLコネクション
+     * @throws SQLException 取得タイムアウトなどの例外
+     */
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Connection connection = dataSource.getConnection();
+            failed = false;
+            return connection;
+        } finally {
+            metrics.recordAcquire(componentId, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * メトリクスを返します
+     *
+     * @return メトリクス
+     */
+    public UserStorageMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * コネクションプールの状態(使用中・待機中の接続数など)を返します
+     *
+     * @return コネクションプールの状態(プール未起動の場合はnull)
+     */
+    public HikariPoolMXBean getPoolStats() {
+        return dataSource.getHikariPoolMXBean();
+    }
+
+    /**
+     * プロバイダ・同期処理がこのデータベース資源の利用を開始します
+     * 利用後は release() を呼び出してください
+     *
+     * @return true:利用できる<br>false:既に解放済み(ファクトリから取得し直してください)
+     */
+    public boolean acquire() {
+        int current;
+        do {
+            current = holders.get();
+            if (current == 0) {
+                return false;
+            }
+        } while (!holders.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * プロバイダ・同期処理がこのデータベース資源の利用を終了します
+     * 設定変更などでファクトリの管理から外された後、最後の利用者が終了した時点でコネクションプールを閉じます
+     */
+    public void release() {
+        if (holders.decrementAndGet() == 0) {
+            LOG.debugv("Closing connection pool: component={0}", componentId);
+            dataSource.close();
+        }
+    }
+
+    /**
+     * ファクトリの管理から外します
+     * キャッシュはすぐに破棄し、コネクションプールは利用中のプロバイダ・同期処理がすべて終了してから閉じます
+     */
+    @Override
+    public void close() {
+        if (!retired.compareAndSet(false, true)) {
+            return;
+        }
+        LOG.debugv("Retiring connection pool: component={0}", componentId);
+        if (bloomFilterRefresh != null) {
+            bloomFilterRefresh.cancel(false);
+        }
+        userCache.invalidateComponent(componentId);
+        if (verifiedCredentialCache != null) {
+            verifiedCredentialCache.invalidateComponent(componentId);
+        }
+        if (roleCache != null) {
+            roleCache.invalidateComponent(componentId);
+        }
+        if (groupCache != null) {
+            groupCache.invalidateComponent(componentId);
+        }
+        release();
+    }
+}
@@ -0,0 +1,303 @@
+package sample.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * 更新日時の列がないテーブルのための差分同期
+ * ユーザをユーザ名のハッシュでバケットに分け、DB側で集約したバケットごとのダイジェストを前回同期時と比較し、
+ * 変化したバケットのユーザだけを読み込んで反映します
+ * 削除されたユーザは、バケットごとにユーザ名順に並べた外部DBと Keycloak のユーザを突き合わせて検出します
+ */
+public class DigestSynchronizer {
+
+    // ロガー
+    private static final Logger LOG = Logger.getLogger(DigestSynchronizer.class);
+    // 設定に保存するキーの接頭辞
+    private static final String PREFIX = "syncDigest.";
+    // 1つの設定値に保存するバケット数(設定値の長さの上限 4000 文字に収めるため)
+    private static final int BUCKETS_PER_KEY = 400;
+    // 1バケットのダイジェストの文字数
+    private static final int DIGEST_LENGTH = 8;
+    // ダイジェストがないバケット
+    private static final String EMPTY = "--------";
+    // 反映に失敗したバケット(どのダイジェストとも一致しないため、次回もう一度同期される)
+    private static final String FAILED = "xxxxxxxx";
+    // セッションファクトリ
+    private final KeycloakSessionFactory sessionFactory;
+    // レルムID
+    private final String realmId;
+    // プロバイダ設定内容
+    private final UserStorageProviderModel model;
+    // データベース資源
+    private final DatabaseUserStore store;
+    // 反映処理
+    private final UserSynchronizer synchronizer;
+    // バケットごとのダイジェストを返すSQL
+    private final NamedSql digestSql;
+    // 1バケットのユーザを返すSQL
+    private final NamedSql bucketSql;
+    // バケットの桁数(16進)
+    private final int digits;
+
+    /**
+     * コンストラクタ
+     *
+     * @param sessionFactory セッションファクトリ
+     * @param realmId        レルムID
+     * @param model          プロバイダ設定内容
+     * @param store          データベース資源
+     * @param synchronizer   反映処理
+     * @param digestSql      バケットごとのダイジェストを返すSQL
+     * @param bucketSql      1バケットのユーザを返すSQL
+     * @param digits         バケットの桁数(16進)
+     */
+    public DigestSynchronizer(KeycloakSessionFactory sessionFactory, String realmId,
+                              UserStorageProviderModel model, DatabaseUserStore store,
+                              UserSynchronizer synchronizer, NamedSql digestSql, NamedSql bucketSql,
+                              int digits) {
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.model = model;
+        this.store = store;
+        this.synchronizer = synchronizer;
+        this.digestSql = digestSql;
+        this.bucketSql = bucketSql;
+        this.digits = digits;
+    }
+
+    /**
+     * 変化したバケットだけを同期します
+     * 全バケットの処理が終わってから今回のダイジェストを保存するため、途中で失敗した場合は次回もう一度比較されます
+     * 一部のユーザの反映に失敗したバケットや、並び順が不正で削除を行えなかったバケットは
+     * 今回のダイジェストを保存せず、次回もう一度同期します
+     *
+     * @return 同期結果
+     */
+    public SynchronizationResult run() {
+        String[] previous = loadDigests();
+        String[] current = currentDigests();
+        SynchronizationResult result = new SynchronizationResult();
+        int changed = 0;
+        for (int i = 0; i < current.length; i++) {
+            if (!Objects.equals(previous[i], current[i])) {
+                int failed = result.getFailed();
+                boolean completed = syncBucket(bucket(i), result);
+                changed++;
+                if (!completed || result.getFailed() > failed) {
+                    current[i] = FAILED;
+                }
+            }
+        }
+        if (changed > 0) {
+            saveDigests(current);
+        }
+        LOG.infov("Digest sync compared buckets: component={0}, buckets={1}, changed={2}",
+                model.getId(), current.length, changed);
+        return result;
+    }
+
+    /**
+     * バケット番号を16進のバケットに変換します
+     *
+     * @param index バケット番号
+     * @return バケット
+     */
+    private String bucket(int index) {
+        String hex = Integer.toHexString(index);
+        return "0".repeat(digits - hex.length()) + hex;
+    }
+
+    /**
+     * DB側でバケットごとのダイジェストを集約して取得します
+     * 各ダイジェストは保存しやすいよう、SHA-256 の先頭8文字に縮めます
+     *
+     * @return バケット番号ごとのダイジェスト(ユーザがいないバケットは EMPTY)
+     */
+    private String[] currentDigests() {
+        String[] digests = new String[1 << (4 * digits)];
+        Arrays.fill(digests, EMPTY);
+        try (Connection connection = store.getConnection();
+             PreparedStatement ps = digestSql.prepare(connection, Map.of("digits", digits));
+             ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                String bucket = rs.getString(1);
+                String digest = rs.getString(2);
+                if (bucket == null || bucket.length() != digits || digest == null) {
+                    continue;
+                }
+                digests[Integer.parseInt(bucket, 16)] = shorten(digest);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return digests;
+    }
+
+    /**
+     * DB側のダイジェストを SHA-256 の先頭8文字(16進)に縮めます
+     * String.hashCode() は衝突しやすく、変化したバケットを見逃すため使いません
+     *
+     * @param digest DB側のダイジェスト
+     * @return 8文字のダイジェスト
+     */
+    static String shorten(String digest) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(digest.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(DIGEST_LENGTH);
+            for (int i = 0; hex.length() < DIGEST_LENGTH; i++) {
+                hex.append(Character.forDigit((hash[i] >> 4) & 0xf, 16))
+                        .append(Character.forDigit(hash[i] & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 1バケットを同期します
+     * 外部DBのユーザはユーザ名順に少しずつ読み込みながら反映し、同じ順に並べた Keycloak 側のユーザと突き合わせ、
+     * 外部DBに存在しなくなったユーザを削除します
+     * Keycloak はユーザ名を小文字で保存するため、外部DBの行も小文字のユーザ名順(lower(username) collate "C")に並べてください
+     *
+     * @param bucket バケット
+     * @param result 同期結果
+     * @return true:削除まで行った<br>false:並び順が不正なため削除を行わなかった
+     */
+    private boolean syncBucket(String bucket, SynchronizationResult result) {
+        List<String> linked = linkedUsernames(bucket);
+        List<String> removed = new ArrayList<>();
+        int next = 0;
+        String previous = null;
+        boolean ordered = true;
+        try (Connection connection = store.getConnection()) {
+            // PostgreSQL はオートコミットを無効にしないとカーソルで少しずつ取得しない
+            connection.setAutoCommit(false);
+            try (PreparedStatement ps = bucketSql.prepare(connection, Map.of("bucket", bucket))) {
+                ps.setFetchSize(synchronizer.getFetchSize());
+                try (ResultSet rs = ps.executeQuery()) {
+                    List<UserRecord> batch = new ArrayList<>();
+                    while (rs.next()) {
+                        UserRecord record = UserRecord.from(rs);
+                        if (record == null) {
+                            continue;
+                        }
+                        // Keycloak はユーザ名を小文字で保存するため、小文字で突き合わせる
+                        String username = record.getUsername().toLowerCase(Locale.ROOT);
+                        if (previous != null && previous.compareTo(username) > 0) {
+                            ordered = false;
+                        }
+                        previous = username;
+                        // Keycloak 側にしかないユーザ(外部DBから削除されたユーザ)を集める
+                        while (next < linked.size() && linked.get(next).compareTo(username) < 0) {
+                            removed.add(linked.get(next++));
+                        }
+                        if (next < linked.size() && linked.get(next).equals(username)) {
+                            next++;
+                        }
+                        batch.add(record);
+                        if (batch.size() >= synchronizer.getBatchSize()) {
+                            synchronizer.apply(batch, result);
+                            batch.clear();
+                        }
+                    }
+                    synchronizer.apply(batch, result);
+                }
+            } finally {
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        removed.addAll(linked.subList(next, linked.size()));
+        if (!ordered) {
+            // 並び順が一致しないと存在するユーザを削除してしまうため、削除は行わない
+            LOG.warnv("Rows of bucket {0} are not ordered by lower(username) collate \"C\", deletions skipped.",
+                    bucket);
+            return false;
+        }
+        synchronizer.remove(removed, result);
+        return true;
+    }
+
+    /**
+     * バケットに属し、このプロバイダにリンクされた Keycloak 側のユーザ名を返します
+     * Keycloak 12 の属性検索は一覧を返すため、1バケット分のユーザ名をメモリに保持します
+     * バケットは 16^digits 個あるため、保持するのはおおよそ全ユーザ数 / 16^digits 件です
+     * 1バケットが大きすぎる場合は BucketDigits を増やしてください(最大 3 桁、4096 バケット)
+     *
+     * @param bucket バケット
+     * @return ユーザ名(昇順)
+     */
+    private List<String> linkedUsernames(String bucket) {
+        List<String> usernames = new ArrayList<>();
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            session.userLocalStorage()
+                    .searchForUserByUserAttribute(UserSynchronizer.ATTRIBUTE_BUCKET, bucket, realm).stream()
+                    .filter(user -> model.getId().equals(user.getFederationLink()))
+                    .map(UserModel::getUsername)
+                    .sorted()
+                    .forEach(usernames::add);
+        });
+        return usernames;
+    }
+
+    /**
+     * 前回同期時のダイジェストを読み込みます
+     *
+     * @return バケット番号ごとのダイジェスト(保存されていなければnull)
+     */
+    private String[] loadDigests() {
+        String[] digests = new String[1 << (4 * digits)];
+        for (int key = 0; key * BUCKETS_PER_KEY < digests.length; key++) {
+            String value = model.get(PREFIX + digits + "." + key);
+            for (int i = 0; value != null && (i + 1) * DIGEST_LENGTH <= value.length(); i++) {
+                digests[key * BUCKETS_PER_KEY + i] = value.substring(i * DIGEST_LENGTH, (i + 1) * DIGEST_LENGTH);
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * 今回のダイジェストをプロバイダ設定に保存します
+     * 桁数が異なる古いダイジェストは削除します
+     *
+     * @param digests バケット番号ごとのダイジェスト
+     */
+    private void saveDigests(String[] digests) {
+        SyncCheckpoints.updateComponent(sessionFactory, realmId, model.getId(), component -> {
+            List<String> stale = component.getConfig().keySet().stream()
+                    .filter(k -> k.startsWith(PREFIX))
+                    .collect(Collectors.toList());
+            stale.forEach(component.getConfig()::remove);
+            for (int key = 0; key * BUCKETS_PER_KEY < digests.length; key++) {
+                int from = key * BUCKETS_PER_KEY;
+                int to = Math.min(digests.length, from + BUCKETS_PER_KEY);
+                component.getConfig().putSingle(PREFIX + digits + "." + key,
+                        String.join("", Arrays.asList(digests).subList(from, to)));
+            }
+        });
+    }
+}
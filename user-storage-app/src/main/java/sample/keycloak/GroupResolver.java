@@ -0,0 +1,104 @@
+package sample.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * 外部DBのグループの所属を Keycloak のグループに変換します
+ * グループはパス(/親/子、先頭の / は省略可)で指定します
+ * 変換したグループはセッション中(このインスタンスの生存中)再利用します
+ */
+public class GroupResolver {
+
+    /** ユーザ名を格納するキー */
+    public static final String KEY_USERNAME = "username";
+    /** グループのパスの列名 */
+    public static final String COLUMN_GROUP = "group";
+    // ロガー
+    private static final Logger LOG = Logger.getLogger(GroupResolver.class);
+    // レルム
+    private final RealmModel realm;
+    // パスごとのグループ(存在しないグループは空)
+    private final Map<String, Optional<GroupModel>> groups = new HashMap<>();
+
+    /**
+     * コンストラクタ
+     *
+     * @param realm レルム
+     */
+    public GroupResolver(RealmModel realm) {
+        this.realm = realm;
+    }
+
+    /**
+     * 外部DBからユーザが所属するグループのパスを読み込みます
+     *
+     * @param connection SQLコネクション
+     * @param sql        グループ取得SQL
+     * @param username   ユーザ名
+     * @return グループのパス(正規化済み)
+     * @throws SQLException SQL例外
+     */
+    public static List<String> load(Connection connection, NamedSql sql, String username)
+            throws SQLException {
+        List<String> paths = new ArrayList<>();
+        try (PreparedStatement ps = sql.prepare(connection, Collections.singletonMap(KEY_USERNAME, username));
+             ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                String path = rs.getString(COLUMN_GROUP);
+                if (path != null && !path.isBlank()) {
+                    paths.add(normalize(path));
+                }
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * グループのパスを正規化します(先頭に / を付けます)
+     *
+     * @param path グループのパス
+     * @return 正規化したパス
+     */
+    public static String normalize(String path) {
+        String trimmed = path.trim();
+        return trimmed.startsWith("/") ? trimmed : "/" + trimmed;
+    }
+
+    /**
+     * グループのパスを Keycloak のグループに変換します
+     * 存在しないグループは無視します
+     *
+     * @param paths グループのパス
+     * @return グループ
+     */
+    public Set<GroupModel> resolve(Collection<String> paths) {
+        Set<GroupModel> resolved = new HashSet<>();
+        for (String path : paths) {
+            Optional<GroupModel> group = groups.computeIfAbsent(path,
+                    p -> Optional.ofNullable(KeycloakModelUtils.findGroupByPath(realm, p)));
+            if (group.isPresent()) {
+                resolved.add(group.get());
+            } else {
+                LOG.debugv("Group {0} is not defined in realm {1}, ignored.", path, realm.getName());
+            }
+        }
+        return resolved;
+    }
+}
@@ -0,0 +1,81 @@
+package sample.keycloak;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定バケットの累積ヒストグラム(Prometheus の histogram 相当)
+ * 記録はロックなしで行い、集計は出力時にだけ行います
+ */
+public class Histogram {
+
+    /** 既定のバケット上限(秒) */
+    public static final double[] LATENCY_BUCKETS = {
+            0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+    // バケット上限
+    private final double[] buckets;
+    // バケットごとの件数(累積ではない)、末尾は +Inf
+    private final LongAdder[] counts;
+    // 合計値
+    private final DoubleAdder sum = new DoubleAdder();
+
+    /**
+     * コンストラクタ
+     *
+     * @param buckets バケット上限(昇順)
+     */
+    public Histogram(double[] buckets) {
+        this.buckets = buckets.clone();
+        this.counts = new LongAdder[buckets.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 値を記録します
+     *
+     * @param value 値
+     */
+    public void observe(double value) {
+        int i = 0;
+        while (i < buckets.length && value > buckets[i]) {
+            i++;
+        }
+        counts[i].increment();
+        sum.add(value);
+    }
+
+    /**
+     * 経過時間(ナノ秒)を秒に換算して記録します
+     *
+     * @param nanos 経過時間(ナノ秒)
+     */
+    public void observeNanos(long nanos) {
+        observe(nanos / 1e9);
+    }
+
+    /**
+     * Prometheus テキスト形式で出力します
+     *
+     * @param out    出力先
+     * @param name   メトリクス名
+     * @param labels ラベル(「a="b",c="d"」形式、なければ空文字)
+     */
+    public void writeTo(StringBuilder out, String name, String labels) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += counts[i].sum();
+            out.append(name).append("_bucket{").append(prefix)
+                    .append("le=\"").append(buckets[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts[buckets.length].sum();
+        out.append(name).append("_bucket{").append(prefix)
+                .append("le=\"+Inf\"} ").append(cumulative).append('\n');
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braces).append(' ').append(sum.sum()).append('\n');
+        out.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,302 @@
+package sample.keycloak;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * ユーザ一覧・検索をキーセット(シーク)方式でページングして実行します
+ * Keycloak から渡される開始位置(オフセット)は、以前のページで取得した最後のユーザ名(境界)に変換し、
+ * OFFSET を使わずに「username > 境界」から読み始めます
+ * 結果は前方専用カーソルで少しずつ取得し、1ページ分しかメモリに保持しません
+ */
+public class KeysetUserQuery {
+
+    /** 直前のページの最後のユーザ名を格納するキー */
+    public static final String KEY_AFTER = "after";
+    /** 取得件数を格納するキー */
+    public static final String KEY_LIMIT = "limit";
+    /** 検索文字列を格納するキー */
+    public static final String KEY_SEARCH = "search";
+    /** 名の検索文字列を格納するキー */
+    public static final String KEY_FIRST_NAME = "firstName";
+    /** 姓の検索文字列を格納するキー */
+    public static final String KEY_LAST_NAME = "lastName";
+    /** グループのパスを格納するキー */
+    public static final String KEY_GROUP = "group";
+    // 一覧用SQL
+    private final NamedSql listSql;
+    // 検索用SQL
+    private final NamedSql searchSql;
+    // 件数取得用SQL
+    private final NamedSql countSql;
+    // グループのメンバー一覧用SQL
+    private final NamedSql memberSql;
+    // カーソルのフェッチサイズ
+    private final int fetchSize;
+    // 件数指定のない一覧で返す最大件数
+    private final int maxResults;
+    // 検索条件ごとの「オフセット→直前のユーザ名」の境界
+    // 外部DBでユーザが追加・削除されると境界がずれるため、作成から短時間で破棄する
+    private final Cache<String, NavigableMap<Integer, String>> boundaries = Caffeine.newBuilder()
+            .maximumSize(1000)
+            .expireAfterWrite(Duration.ofSeconds(30))
+            .build();
+
+    /**
+     * コンストラクタ
+     *
+     * @param listSql   一覧用SQL(${after}, ${limit})
+     * @param searchSql 検索用SQL(${search}, ${after}, ${limit}、任意で ${firstName}, ${lastName})
+     * @param countSql  件数取得用SQL
+     * @param memberSql グループのメンバー一覧用SQL(${group}, ${after}, ${limit})
+     * @param fetchSize  カーソルのフェッチサイズ
+     * @param maxResults 件数指定のない一覧で返す最大件数
+     */
+    public KeysetUserQuery(NamedSql listSql, NamedSql searchSql, NamedSql countSql, NamedSql memberSql,
+                           int fetchSize, int maxResults) {
+        this.listSql = listSql;
+        this.searchSql = searchSql;
+        this.countSql = countSql;
+        this.memberSql = memberSql;
+        this.fetchSize = Math.max(1, fetchSize);
+        this.maxResults = Math.max(1, maxResults);
+    }
+
+    /**
+     * ユーザ一覧の1ページを取得します
+     *
+     * @param connection SQLコネクション
+     * @param search     検索文字列(一覧の場合はnull)
+     * @param first      開始位置
+     * @param max        最大件数(負の場合は無制限)
+     * @return ユーザ情報(ユーザ名順)
+     * @throws SQLException SQL例外
+     */
+    public List<UserRecord> page(Connection connection, String search, int first, int max)
+            throws SQLException {
+        return page(connection, search, null, null, first, max);
+    }
+
+    /**
+     * 姓・名も条件にしてユーザ検索の1ページを取得します
+     * 姓・名は検索用SQLが ${firstName}, ${lastName} を含む場合だけ条件になります
+     *
+     * @param connection SQLコネクション
+     * @param search     検索文字列(一覧の場合はnull)
+     * @param firstName  名の検索文字列(条件にしない場合はnull)
+     * @param lastName   姓の検索文字列(条件にしない場合はnull)
+     * @param first      開始位置
+     * @param max        最大件数(負の場合は無制限)
+     * @return ユーザ情報(ユーザ名順)
+     * @throws SQLException SQL例外
+     */
+    public List<UserRecord> page(Connection connection, String search, String firstName, String lastName,
+                                 int first, int max) throws SQLException {
+        Map<String, Object> params = new HashMap<>();
+        params.put(KEY_SEARCH, search);
+        params.put(KEY_FIRST_NAME, firstName);
+        params.put(KEY_LAST_NAME, lastName);
+        return page(connection, search == null ? listSql : searchSql,
+                search == null ? "" : String.join("\0", "?" + search, firstName, lastName), params, first, max);
+    }
+
+    /**
+     * 検索用SQLで姓・名を条件にできるかを返します
+     *
+     * @return true:検索用SQLが ${firstName} または ${lastName} を含む<br>false:含まない
+     */
+    public boolean searchesNames() {
+        return searchSql != null && (searchSql.getParameterNames().contains(KEY_FIRST_NAME)
+                || searchSql.getParameterNames().contains(KEY_LAST_NAME));
+    }
+
+    /**
+     * グループのメンバー一覧の1ページを取得します
+     *
+     * @param connection SQLコネクション
+     * @param group      グループのパス
+     * @param first      開始位置
+     * @param max        最大件数(負の場合は無制限)
+     * @return ユーザ情報(ユーザ名順)
+     * @throws SQLException SQL例外
+     */
+    public List<UserRecord> members(Connection connection, String group, int first, int max)
+            throws SQLException {
+        Map<String, Object> params = new HashMap<>();
+        params.put(KEY_GROUP, group);
+        return page(connection, memberSql, "#" + group, params, first, max);
+    }
+
+    /**
+     * グループのメンバー一覧用SQLが設定されているかを返します
+     *
+     * @return true:設定されている<br>false:未設定
+     */
+    public boolean hasMemberSql() {
+        return memberSql != null;
+    }
+
+    /**
+     * グループのメンバー一覧を、直前のページの最後のユーザ名の続きから取得します
+     * 開始位置(オフセット)を使わずに「username > 直前のユーザ名」から読むため、
+     * 境界を覚えていなくても、何ページ目でも読み飛ばしは発生しません
+     *
+     * @param connection SQLコネクション
+     * @param group      グループのパス
+     * @param after      直前のページの最後のユーザ名(最初のページは空文字列)
+     * @param max        最大件数
+     * @return ユーザ情報(ユーザ名順)
+     * @throws SQLException SQL例外
+     */
+    public List<UserRecord> membersAfter(Connection connection, String group, String after, int max)
+            throws SQLException {
+        List<UserRecord> records = new ArrayList<>();
+        if (memberSql == null || max <= 0) {
+            return records;
+        }
+        Map<String, Object> params = new HashMap<>();
+        params.put(KEY_GROUP, group);
+        params.put(KEY_AFTER, after);
+        params.put(KEY_LIMIT, max);
+        boolean autoCommit = connection.getAutoCommit();
+        // PostgreSQL はオートコミットを無効にしないとカーソルで少しずつ取得しない
+        connection.setAutoCommit(false);
+        try (PreparedStatement ps = memberSql.prepare(connection, params)) {
+            ps.setFetchSize(Math.min(fetchSize, max));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (records.size() < max && rs.next()) {
+                    UserRecord record = UserRecord.from(rs);
+                    if (record != null) {
+                        records.add(record);
+                    }
+                }
+            }
+        } finally {
+            connection.rollback();
+            connection.setAutoCommit(autoCommit);
+        }
+        return records;
+    }
+
+    /**
+     * 件数指定のない一覧で返す最大件数を返します
+     *
+     * @return 最大件数
+     */
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    /**
+     * カーソルのフェッチサイズを返します
+     *
+     * @return フェッチサイズ
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * 1ページを取得します
+     *
+     * @param connection SQLコネクション
+     * @param sql        実行するSQL(未設定の場合はnull)
+     * @param condition  境界を覚えておく単位(検索条件)
+     * @param params     ${after}, ${limit} 以外のバインド変数
+     * @param first      開始位置
+     * @param max        最大件数(負の場合は無制限)
+     * @return ユーザ情報(ユーザ名順)
+     * @throws SQLException SQL例外
+     */
+    private List<UserRecord> page(Connection connection, NamedSql sql, String condition,
+                                  Map<String, Object> params, int first, int max) throws SQLException {
+        if (sql == null || max == 0) {
+            return new ArrayList<>();
+        }
+        int offset = Math.max(0, first);
+        NavigableMap<Integer, String> known = boundaries.get(condition, k -> new TreeMap<>());
+        Map.Entry<Integer, String> boundary;
+        synchronized (known) {
+            boundary = known.floorEntry(offset);
+        }
+        int skip = boundary == null ? offset : offset - boundary.getKey();
+        long limit = max < 0 ? Integer.MAX_VALUE : Math.min(Integer.MAX_VALUE, (long) skip + max);
+
+        params.put(KEY_AFTER, boundary == null ? "" : boundary.getValue());
+        params.put(KEY_LIMIT, (int) limit);
+        List<UserRecord> records = new ArrayList<>();
+        boolean autoCommit = connection.getAutoCommit();
+        // PostgreSQL はオートコミットを無効にしないとカーソルで少しずつ取得しない
+        connection.setAutoCommit(false);
+        try (PreparedStatement ps = sql.prepare(connection, params)) {
+            ps.setFetchSize(fetchSize);
+            try (ResultSet rs = ps.executeQuery()) {
+                int row = 0;
+                String last = null;
+                while ((max < 0 || records.size() < max) && rs.next()) {
+                    last = rs.getString(UserRecord.COLUMN_USERNAME);
+                    if (row++ == skip - 1) {
+                        remember(known, offset, last);
+                    }
+                    UserRecord record = row > skip ? UserRecord.from(rs) : null;
+                    if (record != null) {
+                        records.add(record);
+                    }
+                }
+                if (last != null && records.size() == max) {
+                    remember(known, offset + max, last);
+                }
+            }
+        } finally {
+            connection.rollback();
+            connection.setAutoCommit(autoCommit);
+        }
+        return records;
+    }
+
+    /**
+     * ユーザ数を返します
+     *
+     * @param connection SQLコネクション
+     * @return ユーザ数(件数取得用SQL未設定の場合は0)
+     * @throws SQLException SQL例外
+     */
+    public int count(Connection connection) throws SQLException {
+        if (countSql == null) {
+            return 0;
+        }
+        try (PreparedStatement ps = countSql.prepare(connection, new HashMap<>());
+             ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * オフセットと直前のユーザ名の境界を覚えておきます
+     *
+     * @param known    境界
+     * @param offset   オフセット
+     * @param username 直前のユーザ名
+     */
+    private static void remember(NavigableMap<Integer, String> known, int offset, String username) {
+        synchronized (known) {
+            known.put(offset, username);
+            // 1つの検索条件で覚えておく境界の数を制限する
+            while (known.size() > 1000) {
+                known.pollFirstEntry();
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package sample.keycloak;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * セッションをまたいで共有する、ユーザごとの割り当て(ロールなど)のキャッシュ
+ * Keycloak のモデルに依存しない外部DB上の名前だけを保持し、モデルへの変換はセッションごとに行います
+ *
+ * @param <T> 割り当ての型
+ */
+public class MappingCache<T> {
+
+    // ユーザごとの割り当て
+    private final Cache<UserCache.Key, List<T>> mappings;
+
+    /**
+     * コンストラクタ
+     *
+     * @param maximumSize 最大件数
+     * @param ttl         有効期限
+     */
+    public MappingCache(long maximumSize, Duration ttl) {
+        this.mappings = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .build();
+    }
+
+    /**
+     * キャッシュから割り当てを取得します
+     *
+     * @param key ユーザのキー
+     * @return 割り当て(キャッシュになければnull)
+     */
+    public List<T> get(UserCache.Key key) {
+        return mappings.getIfPresent(key);
+    }
+
+    /**
+     * 割り当てをキャッシュします
+     *
+     * @param key      ユーザのキー
+     * @param mappings 割り当て
+     */
+    public void put(UserCache.Key key, List<T> mappings) {
+        this.mappings.put(key, Collections.unmodifiableList(mappings));
+    }
+
+    /**
+     * ユーザの割り当てをキャッシュから削除します
+     *
+     * @param key ユーザのキー
+     */
+    public void invalidate(UserCache.Key key) {
+        mappings.invalidate(key);
+    }
+
+    /**
+     * コンポーネントに属する割り当てをすべて削除します
+     *
+     * @param componentId コンポーネントID
+     */
+    public void invalidateComponent(String componentId) {
+        mappings.asMap().keySet().removeIf(key -> key.getComponentId().equals(componentId));
+    }
+}
@@ -0,0 +1,128 @@
+package sample.keycloak;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.AdminRoles;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.Constants;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.storage.UserStorageProvider;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * ユーザストレージプロバイダのメトリクスを Prometheus テキスト形式で返すエンドポイント
+ * /auth/realms/{realm}/database-user-storage-metrics で公開されます
+ * 呼び出しには、SPI設定の scrapeToken と一致する Bearer トークン、
+ * またはそのレルムの realm-management クライアントの view-realm ロールを持つユーザのアクセストークンが必要です
+ * 出力はパスで指定したレルムのコンポーネントに限ります
+ */
+public class MetricsResourceProvider implements RealmResourceProvider {
+
+    // Prometheus テキスト形式のコンテンツタイプ
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    // keycloakランタイムへのアクセスを提供するオブジェクト
+    private final KeycloakSession session;
+    // スクレイプ用の固定トークン(未設定の場合はnull)
+    private final String scrapeToken;
+
+    /**
+     * コンストラクタ
+     *
+     * @param session     セッション情報
+     * @param scrapeToken スクレイプ用の固定トークン(未設定の場合はnull)
+     */
+    public MetricsResourceProvider(KeycloakSession session, String scrapeToken) {
+        this.session = session;
+        this.scrapeToken = scrapeToken;
+    }
+
+    /**
+     * JAX-RS リソースを返します
+     *
+     * @return JAX-RS リソース
+     */
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    /**
+     * メトリクスを返します
+     * 全レルムで共有するユーザ情報キャッシュのメトリクスは、スクレイプ用トークンで認証した場合だけ出力します
+     *
+     * @return Prometheus テキスト形式のメトリクス
+     */
+    @GET
+    @Produces(CONTENT_TYPE)
+    public Response metrics() {
+        RealmModel realm = session.getContext().getRealm();
+        boolean operator = isScrapeToken();
+        if (!operator && !canViewRealm(realm)) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        DatabaseUserStorageProviderFactory factory = (DatabaseUserStorageProviderFactory) session
+                .getKeycloakSessionFactory()
+                .getProviderFactory(UserStorageProvider.class, DatabaseUserStorageProviderFactory.PROVIDER_NAME);
+        if (factory == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        Set<String> componentIds = realm.getComponents(realm.getId(), UserStorageProvider.class.getName()).stream()
+                .filter(c -> DatabaseUserStorageProviderFactory.PROVIDER_NAME.equals(c.getProviderId()))
+                .map(ComponentModel::getId)
+                .collect(Collectors.toSet());
+        return Response.ok(factory.scrapeMetrics(componentIds, operator), CONTENT_TYPE).build();
+    }
+
+    /**
+     * スクレイプ用の固定トークンで呼び出されたかを判定します
+     *
+     * @return true:固定トークンと一致する<br>false:未設定、または一致しない
+     */
+    private boolean isScrapeToken() {
+        if (scrapeToken == null) {
+            return false;
+        }
+        String authorization = session.getContext().getRequestHeaders().getHeaderString(HttpHeaders.AUTHORIZATION);
+        if (authorization == null || !authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return false;
+        }
+        return MessageDigest.isEqual(
+                authorization.substring(7).trim().getBytes(StandardCharsets.UTF_8),
+                scrapeToken.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * アクセストークンのユーザがレルムの設定を参照できるかを判定します
+     *
+     * @param realm レルム
+     * @return true:view-realm ロールを持つ<br>false:未認証、またはロールを持たない
+     */
+    private boolean canViewRealm(RealmModel realm) {
+        AuthenticationManager.AuthResult auth = new AppAuthManager().authenticateBearerToken(session, realm);
+        if (auth == null) {
+            return false;
+        }
+        ClientModel client = realm.getClientByClientId(Constants.REALM_MANAGEMENT_CLIENT_ID);
+        RoleModel role = client == null ? null : client.getRole(AdminRoles.VIEW_REALM);
+        return role != null && auth.getUser().hasRole(role);
+    }
+
+    /**
+     * プロバイダーを解放します
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,68 @@
+package sample.keycloak;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+/**
+ * メトリクスを返すエンドポイントのファクトリ
+ */
+public class MetricsResourceProviderFactory implements RealmResourceProviderFactory {
+
+    // プロバイダ名(エンドポイントのパスになります)
+    private static final String PROVIDER_NAME = "database-user-storage-metrics";
+    // SPI設定ID: スクレイプ用の固定トークン
+    private static final String SPI_SCRAPE_TOKEN = "scrapeToken";
+    // スクレイプ用の固定トークン(未設定の場合はnull)
+    private String scrapeToken;
+
+    /**
+     * プロバイダを生成します
+     *
+     * @param session セッション情報
+     * @return メトリクスを返すエンドポイント
+     */
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new MetricsResourceProvider(session, scrapeToken);
+    }
+
+    /**
+     * ファクトリを初期化します
+     *
+     * @param config SPI設定内容
+     */
+    @Override
+    public void init(Config.Scope config) {
+        String token = config.get(SPI_SCRAPE_TOKEN);
+        scrapeToken = token == null || token.isBlank() ? null : token;
+    }
+
+    /**
+     * 全ファクトリの初期化後に呼び出されます
+     *
+     * @param factory セッションファクトリ
+     */
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    /**
+     * ファクトリを解放します
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * プロバイダ識別子を返します
+     *
+     * @return プロバイダ識別子
+     */
+    @Override
+    public String getId() {
+        return PROVIDER_NAME;
+    }
+}
@@ -0,0 +1,179 @@
+package sample.keycloak;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ${name} 形式のプレースホルダを持つSQLテンプレートをバインド変数付きSQLに変換したもの
+ * 変換は設定読み込み時に一度だけ行い、実行時は PreparedStatement に値をバインドするだけにします
+ */
+public final class NamedSql {
+
+    // 変換前のSQLテンプレート
+    private final String template;
+    // ? に変換したSQL
+    private final String sql;
+    // ? の位置に対応するパラメータ名
+    private final List<String> parameterNames;
+
+    /**
+     * コンストラクタ
+     *
+     * @param template       変換前のSQLテンプレート
+     * @param sql            ? に変換したSQL
+     * @param parameterNames ? の位置に対応するパラメータ名
+     */
+    private NamedSql(String template, String sql, List<String> parameterNames) {
+        this.template = template;
+        this.sql = sql;
+        this.parameterNames = parameterNames;
+    }
+
+    /**
+     * SQLテンプレートを変換します
+     * 文字列リテラル・引用符付き識別子・コメントの中の ${name} はプレースホルダとして扱いません
+     * ただし従来の '${name}' のように、リテラル全体が1つのプレースホルダの場合は、引用符ごとバインド変数に置き換えます
+     *
+     * @param template SQLテンプレート
+     * @return 変換したSQL
+     */
+    public static NamedSql compile(String template) {
+        StringBuilder sql = new StringBuilder(template.length());
+        List<String> names = new ArrayList<>();
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            int skip;
+            if (c == '\'') {
+                skip = closing(template, i + 1, "'");
+                int end = template.indexOf('}', i);
+                if (template.startsWith("${", i + 1) && end >= 0 && end + 2 == skip) {
+                    // 従来の '${name}' 形式
+                    sql.append('?');
+                    names.add(template.substring(i + 3, end).trim());
+                    i = skip;
+                    continue;
+                }
+            } else if (c == '"') {
+                skip = closing(template, i + 1, "\"");
+            } else if (template.startsWith("--", i)) {
+                skip = closing(template, i + 2, "\n");
+            } else if (template.startsWith("/*", i)) {
+                skip = closing(template, i + 2, "*/");
+            } else if (template.startsWith("${", i) && template.indexOf('}', i) > 0) {
+                int end = template.indexOf('}', i);
+                sql.append('?');
+                names.add(template.substring(i + 2, end).trim());
+                i = end + 1;
+                continue;
+            } else {
+                skip = i + 1;
+            }
+            sql.append(template, i, skip);
+            i = skip;
+        }
+        return new NamedSql(template, sql.toString(), Collections.unmodifiableList(names));
+    }
+
+    /**
+     * リテラル・識別子・コメントの終端の次の位置を返します
+     *
+     * @param template SQLテンプレート
+     * @param from     検索開始位置
+     * @param close    終端の文字列
+     * @return 終端の次の位置(終端がなければテンプレートの末尾)
+     */
+    private static int closing(String template, int from, String close) {
+        int end = template.indexOf(close, from);
+        return end < 0 ? template.length() : end + close.length();
+    }
+
+    /**
+     * 変換前のSQLテンプレートを返します
+     *
+     * @return SQLテンプレート
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * バインド変数付きSQLを返します
+     *
+     * @return バインド変数付きSQL
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * テンプレートに含まれるパラメータ名を返します
+     *
+     * @return パラメータ名の一覧(出現順)
+     */
+    public List<String> getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * PreparedStatement を作成し、パラメータをバインドします
+     *
+     * @param connection SQLコネクション
+     * @param params     パラメータ名と値
+     * @return 値をバインドした PreparedStatement
+     * @throws SQLException SQL例外
+     */
+    public PreparedStatement prepare(Connection connection, Map<String, ?> params)
+            throws SQLException {
+        PreparedStatement ps = connection.prepareStatement(sql);
+        try {
+            bind(ps, params);
+            return ps;
+        } catch (SQLException | RuntimeException e) {
+            ps.close();
+            throw e;
+        }
+    }
+
+    /**
+     * PreparedStatement にパラメータをバインドします
+     *
+     * @param ps     PreparedStatement
+     * @param params パラメータ名と値
+     * @throws SQLException SQL例外
+     */
+    public void bind(PreparedStatement ps, Map<String, ?> params) throws SQLException {
+        for (int i = 0; i < parameterNames.size(); i++) {
+            String name = parameterNames.get(i);
+            if (!params.containsKey(name)) {
+                throw new IllegalArgumentException(
+                        String.format("No value for ${%s} in: %s", name, template));
+            }
+            Object value = params.get(name);
+            if (value == null) {
+                ps.setNull(i + 1, Types.VARCHAR);
+            } else if (value instanceof String) {
+                ps.setString(i + 1, (String) value);
+            } else if (value instanceof Collection) {
+                Array array = ps.getConnection().createArrayOf("varchar",
+                        ((Collection<?>) value).toArray());
+                ps.setArray(i + 1, array);
+            } else {
+                ps.setObject(i + 1, value);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return sql;
+    }
+}
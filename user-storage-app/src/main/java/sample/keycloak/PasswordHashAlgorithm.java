@@ -0,0 +1,43 @@
+package sample.keycloak;
+
+/**
+ * 外部DBに保存されたパスワードハッシュの検証方式
+ * 実装は META-INF/services/sample.keycloak.PasswordHashAlgorithm に登録すると読み込まれます
+ */
+public interface PasswordHashAlgorithm {
+
+    /**
+     * 方式の識別子を返します(メトリクスのラベルに使用します)
+     *
+     * @return 方式の識別子
+     */
+    String getId();
+
+    /**
+     * ハッシュ文字列がこの方式のものかを判定します
+     *
+     * @param encoded ハッシュ文字列
+     * @return true:この方式で検証できる<br>false:検証できない
+     */
+    boolean supports(String encoded);
+
+    /**
+     * パスワードがハッシュ文字列と一致するかを検証します
+     *
+     * @param password パスワード
+     * @param encoded  ハッシュ文字列
+     * @return true:一致する<br>false:一致しない
+     */
+    boolean verify(char[] password, String encoded);
+
+    /**
+     * 検証に必要なメモリ量(KiB)を返します
+     * メモリハードな方式のみ、同時に検証できる数をメモリ上限で制限するために使用します
+     *
+     * @param encoded ハッシュ文字列
+     * @return 必要なメモリ量(KiB)
+     */
+    default long memoryCost(String encoded) {
+        return 0L;
+    }
+}
@@ -0,0 +1,193 @@
+package sample.keycloak;
+
+import org.jboss.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * パスワードハッシュの検証を専用のスレッドプールで実行します
+ * 同時に検証する数をスレッド数で、メモリハードな方式の同時実行をメモリ上限で制限し、
+ * ログインが集中しても Keycloak のリクエストスレッドやヒープを使い切らないようにします
+ */
+public class PasswordVerifier implements AutoCloseable {
+
+    // ロガー
+    private static final Logger LOG = Logger.getLogger(PasswordVerifier.class);
+    // 検証方式
+    private final List<PasswordHashAlgorithm> algorithms;
+    // 検証用スレッドプール
+    private final ThreadPoolExecutor executor;
+    // メモリ上限(KiB単位のパーミット)
+    private final Semaphore memory;
+    // メモリ上限(KiB)
+    private final int memoryBudget;
+    // 検証待ちのタイムアウト(ミリ秒)
+    private final long timeoutMillis;
+    // メトリクス
+    private final UserStorageMetrics metrics;
+
+    /**
+     * コンストラクタ
+     *
+     * @param threads       検証スレッド数
+     * @param queueSize     検証待ちの最大件数
+     * @param memoryBudget  メモリハードな方式に使えるメモリ上限(KiB)
+     * @param timeoutMillis 検証待ちのタイムアウト(ミリ秒)
+     * @param metrics       メトリクス
+     */
+    public PasswordVerifier(int threads, int queueSize, int memoryBudget, long timeoutMillis,
+                            UserStorageMetrics metrics) {
+        this.algorithms = loadAlgorithms();
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), runnable -> {
+            Thread thread = new Thread(runnable, "database-user-storage-hash-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.memoryBudget = Math.max(1, memoryBudget);
+        this.memory = new Semaphore(this.memoryBudget, true);
+        this.timeoutMillis = timeoutMillis;
+        this.metrics = metrics;
+    }
+
+    /**
+     * 登録されている検証方式を読み込みます
+     *
+     * @return 検証方式
+     */
+    private static List<PasswordHashAlgorithm> loadAlgorithms() {
+        List<PasswordHashAlgorithm> algorithms = new ArrayList<>();
+        ServiceLoader.load(PasswordHashAlgorithm.class, PasswordHashAlgorithm.class.getClassLoader())
+                .forEach(algorithms::add);
+        LOG.debugv("Password hash algorithms: {0}", algorithms);
+        return algorithms;
+    }
+
+    /**
+     * ハッシュ文字列に対応する検証方式を返します
+     *
+     * @param encoded ハッシュ文字列
+     * @return 検証方式(対応するものがなければnull)
+     */
+    public PasswordHashAlgorithm algorithmFor(String encoded) {
+        for (PasswordHashAlgorithm algorithm : algorithms) {
+            if (algorithm.supports(encoded)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * パスワードを検証します
+     * 検証は専用スレッドで行い、呼び出し元は結果を待つだけにします
+     * 検証待ちが溢れた場合やタイムアウトした場合は、認証NGとして扱います
+     *
+     * @param componentId コンポーネントID(メトリクスのラベル)
+     * @param password    パスワード(検証後に消去するため、呼び出し元では消去しないでください)
+     * @param encoded     ハッシュ文字列
+     * @return true:一致する<br>false:一致しない、または検証できなかった
+     */
+    public boolean verify(String componentId, char[] password, String encoded) {
+        PasswordHashAlgorithm algorithm = algorithmFor(encoded);
+        if (algorithm == null) {
+            Arrays.fill(password, '\0');
+            LOG.warn("Unsupported password hash format.");
+            return false;
+        }
+        long memoryCost = algorithm.memoryCost(encoded);
+        if (memoryCost > memoryBudget) {
+            // 上限を超えるハッシュを上限まで切り詰めて通すと、同時実行数の制御が効かなくなるため拒否する
+            Arrays.fill(password, '\0');
+            metrics.recordHashRejected(componentId, algorithm.getId());
+            LOG.warnv("Password verification rejected: memory cost {0} KiB exceeds hashMemoryBudgetKb {1}.",
+                    memoryCost, memoryBudget);
+            return false;
+        }
+        int cost = (int) memoryCost;
+        long submitted = System.nanoTime();
+        AtomicBoolean started = new AtomicBoolean();
+        Future<Boolean> result;
+        try {
+            result = executor.submit(() -> {
+                if (!started.compareAndSet(false, true)) {
+                    // 開始前に取り消され、呼び出し元がパスワードを消去済み
+                    return false;
+                }
+                try {
+                    memory.acquire(cost);
+                    try {
+                        long hashing = System.nanoTime();
+                        boolean valid = algorithm.verify(password, encoded);
+                        metrics.recordHash(componentId, algorithm.getId(),
+                                hashing - submitted, System.nanoTime() - hashing);
+                        return valid;
+                    } finally {
+                        memory.release(cost);
+                    }
+                } finally {
+                    // タイムアウト後も検証中のスレッドが参照するため、消去は検証が終わってから行う
+                    Arrays.fill(password, '\0');
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Arrays.fill(password, '\0');
+            metrics.recordHashRejected(componentId, algorithm.getId());
+            LOG.warn("Password verification rejected: hashing queue is full.");
+            return false;
+        }
+        try {
+            return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            abandon(result, started, password);
+            metrics.recordHashRejected(componentId, algorithm.getId());
+            LOG.warn("Password verification timed out.");
+            return false;
+        } catch (InterruptedException e) {
+            abandon(result, started, password);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            LOG.warn("Password verification failed.", e.getCause());
+            return false;
+        }
+    }
+
+    /**
+     * 結果を待たずに検証を取り消します
+     * 検証がまだ始まっていなければパスワードをここで消去し、始まっていれば検証の終了時に消去させます
+     *
+     * @param result   検証結果
+     * @param started  検証が始まったか(取り消し済みか)
+     * @param password パスワード
+     */
+    private static void abandon(Future<Boolean> result, AtomicBoolean started, char[] password) {
+        result.cancel(true);
+        if (started.compareAndSet(false, true)) {
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    /**
+     * 検証用スレッドプールを停止します
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
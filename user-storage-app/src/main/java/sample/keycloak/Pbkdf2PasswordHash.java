@@ -0,0 +1,70 @@
+package sample.keycloak;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * PBKDF2 のパスワードハッシュ
+ * 形式: $pbkdf2-sha256$反復回数$ソルト(Base64)$ハッシュ(Base64)
+ * (sha1 / sha256 / sha512 に対応)
+ */
+public class Pbkdf2PasswordHash implements PasswordHashAlgorithm {
+
+    // ハッシュ文字列の接頭辞
+    private static final String PREFIX = "$pbkdf2-";
+
+    /**
+     * 方式の識別子を返します
+     *
+     * @return 方式の識別子
+     */
+    @Override
+    public String getId() {
+        return "pbkdf2";
+    }
+
+    /**
+     * ハッシュ文字列がこの方式のものかを判定します
+     *
+     * @param encoded ハッシュ文字列
+     * @return true:この方式で検証できる<br>false:検証できない
+     */
+    @Override
+    public boolean supports(String encoded) {
+        return encoded.startsWith(PREFIX);
+    }
+
+    /**
+     * パスワードがハッシュ文字列と一致するかを検証します
+     *
+     * @param password パスワード
+     * @param encoded  ハッシュ文字列
+     * @return true:一致する<br>false:一致しない
+     */
+    @Override
+    public boolean verify(char[] password, String encoded) {
+        String[] parts = encoded.split("\\$");
+        if (parts.length != 5) {
+            return false;
+        }
+        try {
+            String algorithm = "PBKDF2WithHmac" + parts[1].substring(PREFIX.length() - 1).toUpperCase(Locale.ROOT);
+            int iterations = Integer.parseInt(parts[2]);
+            byte[] salt = Base64.getDecoder().decode(parts[3]);
+            byte[] expected = Base64.getDecoder().decode(parts[4]);
+            PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, expected.length * 8);
+            try {
+                byte[] actual = SecretKeyFactory.getInstance(algorithm).generateSecret(spec).getEncoded();
+                return MessageDigest.isEqual(expected, actual);
+            } finally {
+                spec.clearPassword();
+            }
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package sample.keycloak;
+
+import java.util.Objects;
+
+/**
+ * 外部DBから取得したロールの割り当て
+ * クライアントIDがnullの場合はレルムロールを表します
+ */
+public final class RoleMapping {
+
+    // クライアントID(レルムロールの場合はnull)
+    private final String clientId;
+    // ロール名
+    private final String roleName;
+
+    /**
+     * コンストラクタ
+     *
+     * @param clientId クライアントID(レルムロールの場合はnull)
+     * @param roleName ロール名
+     */
+    public RoleMapping(String clientId, String roleName) {
+        this.clientId = clientId == null || clientId.isBlank() ? null : clientId;
+        this.roleName = Objects.requireNonNull(roleName);
+    }
+
+    /**
+     * クライアントIDを返します
+     *
+     * @return クライアントID(レルムロールの場合はnull)
+     */
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * ロール名を返します
+     *
+     * @return ロール名
+     */
+    public String getRoleName() {
+        return roleName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        RoleMapping that = (RoleMapping) o;
+        return Objects.equals(clientId, that.clientId) && roleName.equals(that.roleName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(clientId, roleName);
+    }
+
+    @Override
+    public String toString() {
+        return clientId == null ? roleName : clientId + "/" + roleName;
+    }
+}
@@ -0,0 +1,122 @@
+package sample.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleContainerModel;
+import org.keycloak.models.RoleModel;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * 外部DBのロールの割り当てを Keycloak のロールに変換します
+ * ロールを1つずつ検索せず、レルム・クライアントごとにロール一覧を1回だけ取得して名前で引きます
+ * 取得したロール一覧はセッション中(このインスタンスの生存中)再利用します
+ */
+public class RoleResolver {
+
+    /** ユーザ名を格納するキー */
+    public static final String KEY_USERNAME = "username";
+    /** クライアントIDの列名(空の場合はレルムロール) */
+    public static final String COLUMN_CLIENT = "client";
+    /** ロール名の列名 */
+    public static final String COLUMN_ROLE = "role";
+    // ロガー
+    private static final Logger LOG = Logger.getLogger(RoleResolver.class);
+    // レルムロールを表すコンテナのキー
+    private static final String REALM = "";
+    // レルム
+    private final RealmModel realm;
+    // コンテナ(レルムまたはクライアント)ごとの、ロール名からロールへの索引
+    private final Map<String, Map<String, RoleModel>> containers = new HashMap<>();
+
+    /**
+     * コンストラクタ
+     *
+     * @param realm レルム
+     */
+    public RoleResolver(RealmModel realm) {
+        this.realm = realm;
+    }
+
+    /**
+     * 外部DBからユーザのロールの割り当てを読み込みます
+     * client, role 列を1行1ロールで返すか、roles 列(ログイン用SQLと同じJSON配列)を返してください
+     *
+     * @param connection SQLコネクション
+     * @param sql        ロール取得SQL
+     * @param username   ユーザ名
+     * @return ロールの割り当て
+     * @throws SQLException SQL例外
+     */
+    public static List<RoleMapping> load(Connection connection, NamedSql sql, String username)
+            throws SQLException {
+        List<RoleMapping> roles = new ArrayList<>();
+        try (PreparedStatement ps = sql.prepare(connection, Collections.singletonMap(KEY_USERNAME, username));
+             ResultSet rs = ps.executeQuery()) {
+            boolean json = UserRecord.hasColumn(rs, UserRecord.COLUMN_ROLES);
+            boolean client = !json && UserRecord.hasColumn(rs, COLUMN_CLIENT);
+            while (rs.next()) {
+                if (json) {
+                    roles.addAll(UserRecord.parseRoles(rs.getString(UserRecord.COLUMN_ROLES)));
+                    continue;
+                }
+                String role = rs.getString(COLUMN_ROLE);
+                if (role != null && !role.isBlank()) {
+                    roles.add(new RoleMapping(client ? rs.getString(COLUMN_CLIENT) : null, role));
+                }
+            }
+        }
+        return roles;
+    }
+
+    /**
+     * ロールの割り当てを Keycloak のロールに変換します
+     * 存在しないクライアント・ロールは無視します
+     *
+     * @param mappings ロールの割り当て
+     * @return ロール
+     */
+    public Set<RoleModel> resolve(Collection<RoleMapping> mappings) {
+        Set<RoleModel> roles = new HashSet<>();
+        for (RoleMapping mapping : mappings) {
+            RoleModel role = index(mapping.getClientId()).get(mapping.getRoleName());
+            if (role == null) {
+                LOG.debugv("Role {0} is not defined in realm {1}, ignored.", mapping, realm.getName());
+            } else {
+                roles.add(role);
+            }
+        }
+        return roles;
+    }
+
+    /**
+     * コンテナのロール名からロールへの索引を返します
+     * 初回だけレルムまたはクライアントのロール一覧を取得します
+     *
+     * @param clientId クライアントID(レルムロールの場合はnull)
+     * @return ロール名からロールへの索引(クライアントが存在しない場合は空)
+     */
+    private Map<String, RoleModel> index(String clientId) {
+        return containers.computeIfAbsent(clientId == null ? REALM : clientId, key -> {
+            RoleContainerModel container = clientId == null ? realm : realm.getClientByClientId(clientId);
+            if (container == null) {
+                return Collections.emptyMap();
+            }
+            return container.getRolesStream()
+                    .collect(Collectors.toMap(RoleModel::getName, Function.identity(), (a, b) -> a));
+        });
+    }
+}
@@ -0,0 +1,73 @@
+package sample.keycloak;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 同じキーに対する同時実行中の処理をひとつにまとめます
+ * 最初の呼び出し元だけが処理を実行し、実行中に来た呼び出し元はその結果を待って受け取ります
+ *
+ * @param <K> キーの型
+ * @param <V> 結果の型
+ */
+public class SingleFlight<K, V> {
+
+    // 実行中の処理
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * 処理を実行します
+     * 同じキーの処理が実行中であれば、新たには実行せずその結果を返します
+     *
+     * @param key    キー
+     * @param loader 処理
+     * @return 処理の結果
+     */
+    public V execute(K key, Callable<V> loader) {
+        CompletableFuture<V> own = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, own);
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            V value = loader.call();
+            own.complete(value);
+            return value;
+        } catch (Exception e) {
+            own.completeExceptionally(e);
+            throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+        } finally {
+            inFlight.remove(key, own);
+        }
+    }
+
+    /**
+     * 実行中の処理の件数を返します
+     *
+     * @return 実行中の処理の件数
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * 他の呼び出し元が実行中の処理の結果を待ちます
+     *
+     * @param running 実行中の処理
+     * @return 処理の結果
+     */
+    private V await(CompletableFuture<V> running) {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        } catch (CancellationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
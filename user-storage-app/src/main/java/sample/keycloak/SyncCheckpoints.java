@@ -0,0 +1,156 @@
+package sample.keycloak;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 全件同期の途中経過(チェックポイント)をプロバイダ設定に保存します
+ * 同期がノードの再起動などで中断されても、次回は最後に反映したユーザの続きから再開できます
+ * 保存するキーは設定項目に含まれないため、コネクションプールの作り直しは発生しません
+ */
+public class SyncCheckpoints {
+
+    // 設定に保存するキーの接頭辞
+    private static final String PREFIX = "syncCheckpoint.";
+    // セッションファクトリ(保存用トランザクションの作成に使用)
+    private final KeycloakSessionFactory sessionFactory;
+    // レルムID
+    private final String realmId;
+    // 同期開始時点のプロバイダ設定内容
+    private final ComponentModel model;
+    // この同期でチェックポイントを保存したか
+    private boolean saved;
+
+    /**
+     * コンストラクタ
+     *
+     * @param sessionFactory セッションファクトリ
+     * @param realmId        レルムID
+     * @param model          同期開始時点のプロバイダ設定内容
+     */
+    public SyncCheckpoints(KeycloakSessionFactory sessionFactory, String realmId, ComponentModel model) {
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.model = model;
+    }
+
+    /**
+     * パーティションのチェックポイントのキーを作成します
+     * パーティション数が変わった場合に古いチェックポイントを使わないよう、パーティション数もキーに含めます
+     *
+     * @param partitions パーティション数
+     * @param partition  パーティション番号
+     * @return チェックポイントのキー
+     */
+    public static String key(int partitions, int partition) {
+        return PREFIX + partitions + "." + partition;
+    }
+
+    /**
+     * 最後に反映したユーザのキーを返します
+     *
+     * @param key チェックポイントのキー
+     * @return 最後に反映したユーザのキー(チェックポイントがなければ空文字列)
+     */
+    public String after(String key) {
+        String[] values = values(key);
+        return values == null ? "" : values[3];
+    }
+
+    /**
+     * 中断前までの同期結果を返します
+     *
+     * @param key チェックポイントのキー
+     * @return 中断前までの同期結果(チェックポイントがなければ空の結果)
+     */
+    public SynchronizationResult result(String key) {
+        SynchronizationResult result = new SynchronizationResult();
+        String[] values = values(key);
+        if (values != null) {
+            result.setAdded(Integer.parseInt(values[0]));
+            result.setUpdated(Integer.parseInt(values[1]));
+            result.setFailed(Integer.parseInt(values[2]));
+        }
+        return result;
+    }
+
+    /**
+     * 保存されたチェックポイントを分解します
+     * 形式は「追加数,更新数,失敗数,最後に反映したユーザのキー」です
+     *
+     * @param key チェックポイントのキー
+     * @return 分解した値(チェックポイントがない、または壊れている場合はnull)
+     */
+    private String[] values(String key) {
+        String value = model.get(key);
+        if (value == null) {
+            return null;
+        }
+        String[] values = value.split(",", 4);
+        return values.length == 4 ? values : null;
+    }
+
+    /**
+     * チェックポイントを保存します
+     * パーティションごとのスレッドから呼ばれるため、設定の読み書きが重ならないように直列化します
+     *
+     * @param key    チェックポイントのキー
+     * @param after  最後に反映したユーザのキー
+     * @param result ここまでの同期結果
+     */
+    public synchronized void save(String key, String after, SynchronizationResult result) {
+        String value = result.getAdded() + "," + result.getUpdated() + "," + result.getFailed() + "," + after;
+        update(component -> component.getConfig().putSingle(key, value));
+        saved = true;
+    }
+
+    /**
+     * 全てのチェックポイントを削除します(同期が最後まで完了した場合に呼び出します)
+     */
+    public synchronized void clear() {
+        if (!saved && model.getConfig().keySet().stream().noneMatch(k -> k.startsWith(PREFIX))) {
+            return;
+        }
+        update(component -> {
+            List<String> keys = new ArrayList<>(component.getConfig().keySet());
+            keys.stream().filter(k -> k.startsWith(PREFIX)).forEach(component.getConfig()::remove);
+        });
+    }
+
+    /**
+     * 短いトランザクションでプロバイダ設定を更新します
+     *
+     * @param change 設定の変更内容
+     */
+    private void update(Consumer<ComponentModel> change) {
+        updateComponent(sessionFactory, realmId, model.getId(), change);
+    }
+
+    /**
+     * 短いトランザクションでプロバイダ設定を更新します
+     *
+     * @param sessionFactory セッションファクトリ
+     * @param realmId        レルムID
+     * @param componentId    コンポーネントID
+     * @param change         設定の変更内容
+     */
+    static void updateComponent(KeycloakSessionFactory sessionFactory, String realmId, String componentId,
+                                Consumer<ComponentModel> change) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            ComponentModel component = realm == null ? null : realm.getComponent(componentId);
+            if (component == null) {
+                return;
+            }
+            change.accept(component);
+            realm.updateComponent(component);
+        });
+    }
+}
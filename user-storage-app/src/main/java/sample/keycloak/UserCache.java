@@ -0,0 +1,318 @@
+package sample.keycloak;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * セッションをまたいで共有するユーザ情報のキャッシュ
+ * (コンポーネントID, レルムID, ユーザ名) をキーとし、件数上限と有効期限を持ちます
+ * メールアドレスからもユーザ名を引けるように索引を持ち、どちらで検索してもヒットします
+ * 「存在しない」という検索結果も短い有効期限で別にキャッシュします
+ * 外部DBでパスワードが変更された後に古いパスワードが通らないよう、パスワードハッシュは保持しません
+ */
+public class UserCache {
+
+    // キャッシュ本体(ロックフリーで読み書きできる Caffeine を使用)
+    private final Cache<Key, UserRecord> cache;
+    // メールアドレスからユーザ名への索引
+    private final Cache<Key, String> emailIndex;
+    // 存在しなかったユーザのキャッシュ
+    private final Cache<Key, Boolean> missing;
+
+    /**
+     * コンストラクタ
+     *
+     * @param maximumSize 最大件数
+     * @param ttl         有効期限
+     * @param missingTtl  存在しなかったユーザの有効期限
+     */
+    public UserCache(long maximumSize, Duration ttl, Duration missingTtl) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        this.emailIndex = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .build();
+        this.missing = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(missingTtl)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * キャッシュからユーザ情報を取得します
+     *
+     * @param key キー(ユーザ名またはメールアドレス)
+     * @return ユーザ情報(キャッシュになければnull)
+     */
+    public UserRecord get(Key key) {
+        if (key.kind == Kind.EMAIL) {
+            String username = emailIndex.getIfPresent(key);
+            UserRecord record = username == null ? null : cache.getIfPresent(key.withUsername(username));
+            // メールアドレスが変わったユーザを古いメールアドレスで返さない
+            return record != null && record.getEmail() != null
+                    && key.withEmail(record.getEmail()).equals(key) ? record : null;
+        }
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * ユーザ情報をキャッシュします
+     * ユーザ名とメールアドレスの両方から引けるように登録します
+     * パスワードハッシュは除いて登録します
+     *
+     * @param key    検索に使ったキー(ユーザ名またはメールアドレス)
+     * @param record ユーザ情報
+     */
+    public void put(Key key, UserRecord record) {
+        missing.invalidate(key);
+        Key usernameKey = key.withUsername(record.getUsername());
+        missing.invalidate(usernameKey);
+        UserRecord previous = cache.asMap().put(usernameKey, record.withoutPasswordHash());
+        invalidateEmail(usernameKey, previous);
+        if (record.getEmail() != null) {
+            Key emailKey = key.withEmail(record.getEmail());
+            missing.invalidate(emailKey);
+            emailIndex.put(emailKey, record.getUsername());
+        }
+    }
+
+    /**
+     * 存在しないことがキャッシュされているかを判定します
+     *
+     * @param key キー
+     * @return true:存在しないことが分かっている<br>false:不明
+     */
+    public boolean isMissing(Key key) {
+        return missing.getIfPresent(key) != null;
+    }
+
+    /**
+     * 存在しないことをキャッシュします
+     *
+     * @param key キー
+     */
+    public void putMissing(Key key) {
+        missing.put(key, Boolean.TRUE);
+    }
+
+    /**
+     * ユーザ情報をキャッシュから削除します
+     * ユーザ名で削除した場合は、そのユーザのメールアドレスの索引も削除します
+     *
+     * @param key キー
+     */
+    public void invalidate(Key key) {
+        if (key.kind == Kind.EMAIL) {
+            emailIndex.invalidate(key);
+        } else {
+            invalidateEmail(key, cache.asMap().remove(key));
+        }
+        missing.invalidate(key);
+    }
+
+    /**
+     * キャッシュから外したユーザ情報のメールアドレスの索引を削除します
+     * 索引が別のユーザを指している場合は削除しません
+     *
+     * @param usernameKey ユーザ名のキー
+     * @param removed     キャッシュから外したユーザ情報(ない場合はnull)
+     */
+    private void invalidateEmail(Key usernameKey, UserRecord removed) {
+        if (removed == null || removed.getEmail() == null) {
+            return;
+        }
+        emailIndex.asMap().remove(usernameKey.withEmail(removed.getEmail()), removed.getUsername());
+    }
+
+    /**
+     * コンポーネントに属するユーザ情報をすべて削除します
+     *
+     * @param componentId コンポーネントID
+     */
+    public void invalidateComponent(String componentId) {
+        cache.asMap().keySet().removeIf(key -> key.componentId.equals(componentId));
+        emailIndex.asMap().keySet().removeIf(key -> key.componentId.equals(componentId));
+        missing.asMap().keySet().removeIf(key -> key.componentId.equals(componentId));
+    }
+
+    /**
+     * ヒット数・ミス数・追い出し数などの統計情報を返します
+     *
+     * @return 統計情報
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * 存在しなかったユーザのキャッシュの統計情報を返します
+     *
+     * @return 統計情報
+     */
+    public CacheStats missingStats() {
+        return missing.stats();
+    }
+
+    /**
+     * キャッシュの現在の件数(概算)を返します
+     *
+     * @return 件数
+     */
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    /**
+     * キーの種類
+     */
+    public enum Kind {
+        /** ユーザ名 */
+        USERNAME,
+        /** メールアドレス(小文字に正規化したもの) */
+        EMAIL,
+        /** パスワード照合のためのユーザ名(同時検索のまとめ役でのみ使用し、キャッシュには使用しない) */
+        CREDENTIAL
+    }
+
+    /**
+     * キャッシュのキー
+     */
+    public static final class Key {
+
+        // コンポーネントID
+        private final String componentId;
+        // レルムID
+        private final String realmId;
+        // キーの種類
+        private final Kind kind;
+        // ユーザ名またはメールアドレス
+        private final String value;
+
+        /**
+         * ユーザ名のキーを作成します
+         *
+         * @param componentId コンポーネントID
+         * @param realmId     レルムID
+         * @param username    ユーザ名
+         */
+        public Key(String componentId, String realmId, String username) {
+            this(componentId, realmId, Kind.USERNAME, username);
+        }
+
+        /**
+         * コンストラクタ
+         *
+         * @param componentId コンポーネントID
+         * @param realmId     レルムID
+         * @param kind        キーの種類
+         * @param value       ユーザ名またはメールアドレス
+         */
+        public Key(String componentId, String realmId, Kind kind, String value) {
+            this.componentId = componentId;
+            this.realmId = realmId;
+            this.kind = kind;
+            this.value = value;
+        }
+
+        /**
+         * 同じコンポーネント・レルムのユーザ名のキーを返します
+         *
+         * @param username ユーザ名
+         * @return キー
+         */
+        public Key withUsername(String username) {
+            return kind == Kind.USERNAME && value.equals(username)
+                    ? this : new Key(componentId, realmId, Kind.USERNAME, username);
+        }
+
+        /**
+         * 同じコンポーネント・レルムのメールアドレスのキーを返します
+         *
+         * @param email メールアドレス
+         * @return キー
+         */
+        public Key withEmail(String email) {
+            return new Key(componentId, realmId, Kind.EMAIL, UserRecord.normalizeEmail(email));
+        }
+
+        /**
+         * 同じコンポーネント・レルム・ユーザ名の、パスワード照合のための読み込みのキーを返します
+         * パスワードハッシュを持たないキャッシュの結果を共有しないよう、通常の検索とは別にまとめます
+         *
+         * @return キー
+         */
+        public Key forCredential() {
+            return new Key(componentId, realmId, Kind.CREDENTIAL, value);
+        }
+
+        /**
+         * コンポーネントIDを返します
+         *
+         * @return コンポーネントID
+         */
+        public String getComponentId() {
+            return componentId;
+        }
+
+        /**
+         * レルムIDを返します
+         *
+         * @return レルムID
+         */
+        public String getRealmId() {
+            return realmId;
+        }
+
+        /**
+         * キーの種類を返します
+         *
+         * @return キーの種類
+         */
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * ユーザ名またはメールアドレスを返します
+         *
+         * @return ユーザ名またはメールアドレス
+         */
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return kind == key.kind
+                    && componentId.equals(key.componentId)
+                    && realmId.equals(key.realmId)
+                    && value.equals(key.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(componentId, realmId, kind, value);
+        }
+
+        @Override
+        public String toString() {
+            return componentId + "/" + realmId + "/" + kind + ":" + value;
+        }
+    }
+}
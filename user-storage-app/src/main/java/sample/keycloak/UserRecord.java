@@ -0,0 +1,287 @@
+package sample.keycloak;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 外部DBから取得したユーザ情報
+ * セッションをまたいでキャッシュするため、Keycloakのモデルには依存させず不変にしています
+ * ログイン用SQL(ログイン射影)を使う場合は、パスワードハッシュ・属性・ロールも1行で受け取ります
+ */
+public final class UserRecord {
+
+    /** ユーザ名の列名 */
+    public static final String COLUMN_USERNAME = "username";
+    /** メールアドレスの列名 */
+    public static final String COLUMN_EMAIL = "email";
+    /** パスワードハッシュの列名 */
+    public static final String COLUMN_PASSWORD_HASH = "password_hash";
+    /** 属性(JSONオブジェクト)の列名 */
+    public static final String COLUMN_ATTRIBUTES = "attributes";
+    /** ロール(JSON配列 [{"client": ..., "role": ...}])の列名 */
+    public static final String COLUMN_ROLES = "roles";
+    // 属性JSONの型
+    private static final TypeReference<Map<String, Object>> ATTRIBUTES_TYPE =
+            new TypeReference<Map<String, Object>>() {
+            };
+    // ロールJSONの型
+    private static final TypeReference<List<Map<String, String>>> ROLES_TYPE =
+            new TypeReference<List<Map<String, String>>>() {
+            };
+    // ユーザ名
+    private final String username;
+    // メールアドレス(ない場合はnull)
+    private final String email;
+    // パスワードハッシュ(取得していない場合はnull)
+    private final String passwordHash;
+    // 属性(取得していない場合はnull)
+    private final Map<String, List<String>> attributes;
+    // ロール(取得していない場合はnull)
+    private final List<RoleMapping> roles;
+
+    /**
+     * コンストラクタ
+     *
+     * @param username ユーザ名
+     */
+    public UserRecord(String username) {
+        this(username, null);
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param username ユーザ名
+     * @param email    メールアドレス(ない場合はnull)
+     */
+    public UserRecord(String username, String email) {
+        this(username, email, null, null, null);
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param username     ユーザ名
+     * @param email        メールアドレス(ない場合はnull)
+     * @param passwordHash パスワードハッシュ(取得していない場合はnull)
+     * @param attributes   属性(取得していない場合はnull)
+     * @param roles        ロール(取得していない場合はnull)
+     */
+    public UserRecord(String username, String email, String passwordHash,
+                      Map<String, List<String>> attributes, List<RoleMapping> roles) {
+        this.username = Objects.requireNonNull(username);
+        this.email = email == null || email.isBlank() ? null : email;
+        this.passwordHash = passwordHash;
+        this.attributes = attributes == null ? null : Collections.unmodifiableMap(attributes);
+        this.roles = roles == null ? null : Collections.unmodifiableList(roles);
+    }
+
+    /**
+     * 検索結果の現在行からユーザ情報を作成します
+     * ユーザ名以外の列は検索結果に含まれている場合だけ読み込みます
+     *
+     * @param rs 検索結果
+     * @return ユーザ情報(ユーザ名が空の場合はnull)
+     * @throws SQLException SQL例外
+     */
+    public static UserRecord from(ResultSet rs) throws SQLException {
+        String username = rs.getString(COLUMN_USERNAME);
+        if (username == null || username.isBlank()) {
+            return null;
+        }
+        ResultSetMetaData meta = rs.getMetaData();
+        return new UserRecord(username,
+                hasColumn(meta, COLUMN_EMAIL) ? rs.getString(COLUMN_EMAIL) : null,
+                hasColumn(meta, COLUMN_PASSWORD_HASH) ? rs.getString(COLUMN_PASSWORD_HASH) : null,
+                hasColumn(meta, COLUMN_ATTRIBUTES) ? parseAttributes(rs.getString(COLUMN_ATTRIBUTES)) : null,
+                hasColumn(meta, COLUMN_ROLES) ? parseRoles(rs.getString(COLUMN_ROLES)) : null);
+    }
+
+    /**
+     * 検索結果に列が含まれているかを判定します
+     *
+     * @param rs     検索結果
+     * @param column 列名
+     * @return true:含まれている<br>false:含まれていない
+     * @throws SQLException SQL例外
+     */
+    static boolean hasColumn(ResultSet rs, String column) throws SQLException {
+        return hasColumn(rs.getMetaData(), column);
+    }
+
+    /**
+     * 検索結果に列が含まれているかを判定します
+     *
+     * @param meta   検索結果のメタデータ
+     * @param column 列名
+     * @return true:含まれている<br>false:含まれていない
+     * @throws SQLException SQL例外
+     */
+    private static boolean hasColumn(ResultSetMetaData meta, String column) throws SQLException {
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            if (column.equalsIgnoreCase(meta.getColumnLabel(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 属性のJSONオブジェクトを解析します
+     * 値が配列の場合は複数値、それ以外は1つの値として扱います
+     *
+     * @param json 属性のJSON(nullの場合は属性なし)
+     * @return 属性
+     * @throws SQLException JSONとして解析できなかった場合の例外
+     */
+    static Map<String, List<String>> parseAttributes(String json) throws SQLException {
+        Map<String, List<String>> attributes = new LinkedHashMap<>();
+        if (json == null || json.isBlank()) {
+            return attributes;
+        }
+        try {
+            JsonSerialization.mapper.readValue(json, ATTRIBUTES_TYPE).forEach((name, value) -> {
+                List<String> values = new ArrayList<>();
+                if (value instanceof Collection) {
+                    ((Collection<?>) value).stream()
+                            .filter(Objects::nonNull)
+                            .forEach(v -> values.add(String.valueOf(v)));
+                } else if (value != null) {
+                    values.add(String.valueOf(value));
+                }
+                attributes.put(name, Collections.unmodifiableList(values));
+            });
+            return attributes;
+        } catch (IOException e) {
+            throw new SQLException("Invalid attributes JSON", e);
+        }
+    }
+
+    /**
+     * ロールのJSON配列を解析します
+     *
+     * @param json ロールのJSON(nullの場合はロールなし)
+     * @return ロール
+     * @throws SQLException JSONとして解析できなかった場合の例外
+     */
+    static List<RoleMapping> parseRoles(String json) throws SQLException {
+        List<RoleMapping> roles = new ArrayList<>();
+        if (json == null || json.isBlank()) {
+            return roles;
+        }
+        try {
+            for (Map<String, String> role : JsonSerialization.mapper.readValue(json, ROLES_TYPE)) {
+                if (role != null && role.get("role") != null) {
+                    roles.add(new RoleMapping(role.get("client"), role.get("role")));
+                }
+            }
+            return roles;
+        } catch (IOException e) {
+            throw new SQLException("Invalid roles JSON", e);
+        }
+    }
+
+    /**
+     * メールアドレスを検索・キャッシュ用に正規化します(前後の空白除去と小文字化)
+     *
+     * @param email メールアドレス
+     * @return 正規化したメールアドレス
+     */
+    public static String normalizeEmail(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * ユーザ名を返します
+     *
+     * @return ユーザ名
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * メールアドレスを返します
+     *
+     * @return メールアドレス(ない場合はnull)
+     */
+    public String getEmail() {
+        return email;
+    }
+
+    /**
+     * パスワードハッシュを返します
+     *
+     * @return パスワードハッシュ(取得していない場合はnull)
+     */
+    public String getPasswordHash() {
+        return passwordHash;
+    }
+
+    /**
+     * パスワードハッシュを除いたユーザ情報を返します
+     *
+     * @return パスワードハッシュを除いたユーザ情報(ハッシュを持たない場合は自身)
+     */
+    public UserRecord withoutPasswordHash() {
+        return passwordHash == null ? this : new UserRecord(username, email, null, attributes, roles);
+    }
+
+    /**
+     * 属性を返します
+     *
+     * @return 属性(取得していない場合はnull)
+     */
+    public Map<String, List<String>> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * ロールを返します
+     *
+     * @return ロール(取得していない場合はnull)
+     */
+    public List<RoleMapping> getRoles() {
+        return roles;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        UserRecord that = (UserRecord) o;
+        return username.equals(that.username)
+                && Objects.equals(email, that.email)
+                && Objects.equals(passwordHash, that.passwordHash)
+                && Objects.equals(attributes, that.attributes)
+                && Objects.equals(roles, that.roles);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(username, email, passwordHash, attributes, roles);
+    }
+
+    @Override
+    public String toString() {
+        // パスワードハッシュはログに出さない
+        return "UserRecord{username=" + username + "}";
+    }
+}
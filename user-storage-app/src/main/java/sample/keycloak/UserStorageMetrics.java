@@ -0,0 +1,307 @@
+package sample.keycloak;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ユーザストレージプロバイダのメトリクスを集め、Prometheus テキスト形式で出力します
+ * 検索系はコンポーネントIDとレルムIDで、コネクションプール系はコンポーネントIDでラベル付けします
+ */
+public class UserStorageMetrics {
+
+    /** 検索結果: ユーザ情報キャッシュにヒット */
+    public static final String OUTCOME_HIT = "hit";
+    /** 検索結果: 存在しないことがキャッシュ済み */
+    public static final String OUTCOME_NEGATIVE_HIT = "negative_hit";
+    /** 検索結果: ブルームフィルタで存在しないと判定 */
+    public static final String OUTCOME_BLOOM_REJECT = "bloom_reject";
+    /** 検索結果: DBを検索して見つかった */
+    public static final String OUTCOME_FOUND = "found";
+    /** 検索結果: DBを検索して見つからなかった */
+    public static final String OUTCOME_NOT_FOUND = "not_found";
+    /** 検索結果: エラー */
+    public static final String OUTCOME_ERROR = "error";
+    /** 認証結果: パスワードが一致した */
+    public static final String OUTCOME_VALID = "valid";
+    /** 認証結果: パスワードが一致しなかった */
+    public static final String OUTCOME_INVALID = "invalid";
+    // メトリクス名の接頭辞
+    private static final String PREFIX = "keycloak_database_user_storage_";
+    // 処理時間 (component, realm, operation)
+    private final ConcurrentMap<List<String>, Histogram> durations = new ConcurrentHashMap<>();
+    // 処理件数 (component, realm, operation, outcome)
+    private final ConcurrentMap<List<String>, LongAdder> outcomes = new ConcurrentHashMap<>();
+    // コネクション取得時間 (component)
+    private final ConcurrentMap<String, Histogram> acquires = new ConcurrentHashMap<>();
+    // コネクション取得エラー件数 (component)
+    private final ConcurrentMap<String, LongAdder> acquireErrors = new ConcurrentHashMap<>();
+    // パスワード検証の待ち時間 (component, algorithm)
+    private final ConcurrentMap<List<String>, Histogram> hashQueues = new ConcurrentHashMap<>();
+    // パスワード検証の計算時間 (component, algorithm)
+    private final ConcurrentMap<List<String>, Histogram> hashes = new ConcurrentHashMap<>();
+    // パスワード検証の拒否・タイムアウト件数 (component, algorithm)
+    private final ConcurrentMap<List<String>, LongAdder> hashRejects = new ConcurrentHashMap<>();
+
+    /**
+     * 検索・認証処理の結果と処理時間を記録します
+     *
+     * @param componentId コンポーネントID
+     * @param realmId     レルムID
+     * @param operation   処理名(getUserByUsername など)
+     * @param outcome     結果(OUTCOME_*)
+     * @param nanos       処理時間(ナノ秒)
+     */
+    public void recordOperation(String componentId, String realmId, String operation,
+                                String outcome, long nanos) {
+        durations.computeIfAbsent(List.of(componentId, realmId, operation),
+                k -> new Histogram(Histogram.LATENCY_BUCKETS)).observeNanos(nanos);
+        outcomes.computeIfAbsent(List.of(componentId, realmId, operation, outcome),
+                k -> new LongAdder()).increment();
+    }
+
+    /**
+     * コネクションの取得時間を記録します
+     *
+     * @param componentId コンポーネントID
+     * @param nanos       取得時間(ナノ秒)
+     * @param failed      取得に失敗したか
+     */
+    public void recordAcquire(String componentId, long nanos, boolean failed) {
+        acquires.computeIfAbsent(componentId,
+                k -> new Histogram(Histogram.LATENCY_BUCKETS)).observeNanos(nanos);
+        if (failed) {
+            acquireErrors.computeIfAbsent(componentId, k -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * パスワード検証の待ち時間と計算時間を記録します
+     *
+     * @param componentId コンポーネントID
+     * @param algorithm   ハッシュ方式
+     * @param queueNanos  検証開始までの待ち時間(ナノ秒)
+     * @param hashNanos   ハッシュ計算時間(ナノ秒)
+     */
+    public void recordHash(String componentId, String algorithm, long queueNanos, long hashNanos) {
+        List<String> key = List.of(componentId, algorithm);
+        hashQueues.computeIfAbsent(key, k -> new Histogram(Histogram.LATENCY_BUCKETS)).observeNanos(queueNanos);
+        hashes.computeIfAbsent(key, k -> new Histogram(Histogram.LATENCY_BUCKETS)).observeNanos(hashNanos);
+    }
+
+    /**
+     * 検証待ちが溢れた、タイムアウトした、またはメモリ使用量が上限を超えたパスワード検証を記録します
+     *
+     * @param componentId コンポーネントID
+     * @param algorithm   ハッシュ方式
+     */
+    public void recordHashRejected(String componentId, String algorithm) {
+        hashRejects.computeIfAbsent(List.of(componentId, algorithm), k -> new LongAdder()).increment();
+    }
+
+    /**
+     * コンポーネントのメトリクスを破棄します
+     *
+     * @param componentId コンポーネントID
+     */
+    public void remove(String componentId) {
+        durations.keySet().removeIf(k -> k.get(0).equals(componentId));
+        outcomes.keySet().removeIf(k -> k.get(0).equals(componentId));
+        acquires.remove(componentId);
+        acquireErrors.remove(componentId);
+        hashQueues.keySet().removeIf(k -> k.get(0).equals(componentId));
+        hashes.keySet().removeIf(k -> k.get(0).equals(componentId));
+        hashRejects.keySet().removeIf(k -> k.get(0).equals(componentId));
+    }
+
+    /**
+     * 指定したコンポーネントのメトリクスを Prometheus テキスト形式で出力します
+     * ユーザ情報キャッシュは全コンポーネント(全レルム)で共有しているため、cache を渡した場合だけ出力します
+     *
+     * @param stores       コンポーネントごとのデータベース資源
+     * @param cache        ユーザ情報キャッシュ(共有のメトリクスを出力しない場合はnull)
+     * @param componentIds 出力するコンポーネントID
+     * @return Prometheus テキスト形式のメトリクス
+     */
+    public String scrape(Collection<DatabaseUserStore> stores, UserCache cache, Set<String> componentIds) {
+        StringBuilder out = new StringBuilder(4096);
+        header(out, "operation_duration_seconds", "histogram",
+                "Latency of provider operations.");
+        durations.forEach((k, h) -> {
+            if (componentIds.contains(k.get(0))) {
+                h.writeTo(out, PREFIX + "operation_duration_seconds",
+                        labels("component", k.get(0), "realm", k.get(1), "operation", k.get(2)));
+            }
+        });
+        header(out, "operations_total", "counter",
+                "Provider operations by outcome (hit, negative_hit, bloom_reject, found, not_found, error, valid, invalid).");
+        outcomes.forEach((k, c) -> {
+            if (componentIds.contains(k.get(0))) {
+                sample(out, "operations_total",
+                        labels("component", k.get(0), "realm", k.get(1), "operation", k.get(2), "outcome", k.get(3)),
+                        c.sum());
+            }
+        });
+
+        header(out, "connection_acquire_seconds", "histogram",
+                "Time spent waiting for a pooled connection.");
+        acquires.forEach((k, h) -> {
+            if (componentIds.contains(k)) {
+                h.writeTo(out, PREFIX + "connection_acquire_seconds", labels("component", k));
+            }
+        });
+        header(out, "connection_acquire_errors_total", "counter",
+                "Failed attempts to get a pooled connection.");
+        acquireErrors.forEach((k, c) -> {
+            if (componentIds.contains(k)) {
+                sample(out, "connection_acquire_errors_total", labels("component", k), c.sum());
+            }
+        });
+        writePools(out, stores, componentIds);
+
+        header(out, "password_hash_queue_seconds", "histogram",
+                "Time a password verification waited for a hashing thread and memory budget.");
+        hashQueues.forEach((k, h) -> {
+            if (componentIds.contains(k.get(0))) {
+                h.writeTo(out, PREFIX + "password_hash_queue_seconds",
+                        labels("component", k.get(0), "algorithm", k.get(1)));
+            }
+        });
+        header(out, "password_hash_seconds", "histogram", "Time spent computing password hashes.");
+        hashes.forEach((k, h) -> {
+            if (componentIds.contains(k.get(0))) {
+                h.writeTo(out, PREFIX + "password_hash_seconds",
+                        labels("component", k.get(0), "algorithm", k.get(1)));
+            }
+        });
+        header(out, "password_hash_rejected_total", "counter",
+                "Password verifications rejected because the hashing queue was full, timed out"
+                        + " or the hash memory cost exceeded the budget.");
+        hashRejects.forEach((k, c) -> {
+            if (componentIds.contains(k.get(0))) {
+                sample(out, "password_hash_rejected_total",
+                        labels("component", k.get(0), "algorithm", k.get(1)), c.sum());
+            }
+        });
+
+        if (cache == null) {
+            return out.toString();
+        }
+        CacheStats stats = cache.stats();
+        CacheStats missing = cache.missingStats();
+        header(out, "user_cache_requests_total", "counter", "User cache lookups by result.");
+        sample(out, "user_cache_requests_total", labels("cache", "user", "result", "hit"), stats.hitCount());
+        sample(out, "user_cache_requests_total", labels("cache", "user", "result", "miss"), stats.missCount());
+        sample(out, "user_cache_requests_total", labels("cache", "missing", "result", "hit"), missing.hitCount());
+        sample(out, "user_cache_requests_total", labels("cache", "missing", "result", "miss"), missing.missCount());
+        header(out, "user_cache_evictions_total", "counter", "User cache evictions.");
+        sample(out, "user_cache_evictions_total", labels("cache", "user"), stats.evictionCount());
+        sample(out, "user_cache_evictions_total", labels("cache", "missing"), missing.evictionCount());
+        header(out, "user_cache_size", "gauge", "Estimated number of cached users.");
+        sample(out, "user_cache_size", "", cache.size());
+        return out.toString();
+    }
+
+    /**
+     * コネクションプールの状態を出力します
+     *
+     * @param out          出力先
+     * @param stores       コンポーネントごとのデータベース資源
+     * @param componentIds 出力するコンポーネントID
+     */
+    private void writePools(StringBuilder out, Collection<DatabaseUserStore> stores, Set<String> componentIds) {
+        String[][] gauges = {
+                {"pool_active_connections", "Connections in use."},
+                {"pool_idle_connections", "Idle connections in the pool."},
+                {"pool_pending_threads", "Threads waiting for a connection."},
+                {"pool_total_connections", "All connections in the pool."}
+        };
+        for (String[] gauge : gauges) {
+            header(out, gauge[0], "gauge", gauge[1]);
+            for (DatabaseUserStore store : stores) {
+                HikariPoolMXBean pool = store.getPoolStats();
+                if (pool == null || !componentIds.contains(store.getComponentId())) {
+                    continue;
+                }
+                long value;
+                switch (gauge[0]) {
+                    case "pool_active_connections":
+                        value = pool.getActiveConnections();
+                        break;
+                    case "pool_idle_connections":
+                        value = pool.getIdleConnections();
+                        break;
+                    case "pool_pending_threads":
+                        value = pool.getThreadsAwaitingConnection();
+                        break;
+                    default:
+                        value = pool.getTotalConnections();
+                        break;
+                }
+                sample(out, gauge[0], labels("component", store.getComponentId()), value);
+            }
+        }
+    }
+
+    /**
+     * HELP / TYPE 行を出力します
+     *
+     * @param out  出力先
+     * @param name メトリクス名(接頭辞なし)
+     * @param type 種類
+     * @param help 説明
+     */
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * 1件の値を出力します
+     *
+     * @param out    出力先
+     * @param name   メトリクス名(接頭辞なし)
+     * @param labels ラベル
+     * @param value  値
+     */
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(PREFIX).append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * ラベル文字列を作成します
+     *
+     * @param pairs ラベル名と値を交互に並べたもの
+     * @return 「a="b",c="d"」形式のラベル
+     */
+    private static String labels(String... pairs) {
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (i > 0) {
+                labels.append(',');
+            }
+            labels.append(pairs[i]).append("=\"").append(escape(pairs[i + 1])).append('"');
+        }
+        return labels.toString();
+    }
+
+    /**
+     * ラベル値をエスケープします
+     *
+     * @param value ラベル値
+     * @return エスケープしたラベル値
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
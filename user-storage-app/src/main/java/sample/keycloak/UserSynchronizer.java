@@ -0,0 +1,374 @@
+package sample.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 外部DBのユーザを Keycloak のローカルストレージに取り込みます
+ * 問い合わせ結果はカーソルで少しずつ読み込み、一定件数ごとに短いトランザクションで反映します
+ */
+public class UserSynchronizer {
+
+    // ロガー
+    private static final Logger LOG = Logger.getLogger(UserSynchronizer.class);
+    // 進捗をログに出力する間隔(ミリ秒)
+    private static final long PROGRESS_INTERVAL = 10000L;
+    /** パーティション数を格納するキー */
+    static final String KEY_PARTITIONS = "partitions";
+    /** パーティション番号を格納するキー */
+    static final String KEY_PARTITION = "partition";
+    /** 再開位置(最後に反映したユーザ名)を格納するキー */
+    static final String KEY_AFTER = "after";
+    /** 取り込んだユーザに差分同期のバケットを記録する属性名 */
+    public static final String ATTRIBUTE_BUCKET = "DB_SYNC_BUCKET";
+    // セッションファクトリ(反映用トランザクションの作成に使用)
+    private final KeycloakSessionFactory sessionFactory;
+    // レルムID
+    private final String realmId;
+    // プロバイダ設定内容
+    private final UserStorageProviderModel model;
+    // データベース資源
+    private final DatabaseUserStore store;
+    // 1トランザクションで反映する件数
+    private final int batchSize;
+    // カーソルのフェッチサイズ
+    private final int fetchSize;
+    // 差分同期のバケットの桁数(0の場合はバケットを記録しない)
+    private final int bucketDigits;
+
+    /**
+     * コンストラクタ
+     *
+     * @param sessionFactory セッションファクトリ
+     * @param realmId        レルムID
+     * @param model          プロバイダ設定内容
+     * @param store          データベース資源
+     * @param batchSize      1トランザクションで反映する件数
+     * @param fetchSize      カーソルのフェッチサイズ
+     * @param bucketDigits   差分同期のバケットの桁数(0の場合はバケットを記録しない)
+     */
+    public UserSynchronizer(KeycloakSessionFactory sessionFactory, String realmId,
+                            UserStorageProviderModel model, DatabaseUserStore store,
+                            int batchSize, int fetchSize, int bucketDigits) {
+        this.sessionFactory = sessionFactory;
+        this.realmId = realmId;
+        this.model = model;
+        this.store = store;
+        this.batchSize = Math.max(1, batchSize);
+        this.fetchSize = fetchSize;
+        this.bucketDigits = bucketDigits;
+    }
+
+    /**
+     * 1トランザクションで反映する件数を返します
+     *
+     * @return 1トランザクションで反映する件数
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * カーソルのフェッチサイズを返します
+     *
+     * @return カーソルのフェッチサイズ
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * ユーザ名が属する差分同期のバケットを返します
+     * ユーザ名の MD5 の16進表記の先頭 digits 桁で、SQLの substr(md5(username), 1, digits) と一致します
+     *
+     * @param username ユーザ名
+     * @param digits   バケットの桁数
+     * @return バケット
+     */
+    public static String bucketOf(String username, int digits) {
+        try {
+            byte[] hash = MessageDigest.getInstance("MD5").digest(username.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digits + 1);
+            for (int i = 0; hex.length() < digits; i++) {
+                hex.append(Character.forDigit((hash[i] >> 4) & 0xf, 16))
+                        .append(Character.forDigit(hash[i] & 0xf, 16));
+            }
+            return hex.substring(0, digits);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * SQLの結果を取り込みます
+     *
+     * @param sql    取り込むユーザを返すSQL
+     * @param params バインド変数
+     * @return 同期結果
+     */
+    public SynchronizationResult run(NamedSql sql, Map<String, ?> params) {
+        return run(sql, params, null, null);
+    }
+
+    /**
+     * SQLの結果を取り込みます
+     * SQLに ${after} が含まれる場合は、チェックポイントに保存した最後のユーザ名をバインドして続きから再開し、
+     * 進捗を出力するたびに反映済みの最後のユーザ名をチェックポイントに保存します
+     * (SQLはユーザ名で並べ替え、ユーザ名が ${after} より大きいものに絞り込んでください)
+     *
+     * @param sql         取り込むユーザを返すSQL
+     * @param params      バインド変数
+     * @param checkpoints チェックポイントの保存先(再開しない場合はnull)
+     * @param checkpoint  チェックポイントのキー
+     * @return 同期結果(再開した場合は中断前の件数を含む)
+     */
+    public SynchronizationResult run(NamedSql sql, Map<String, ?> params,
+                                     SyncCheckpoints checkpoints, String checkpoint) {
+        boolean resumable = checkpoints != null && sql.getParameterNames().contains(KEY_AFTER);
+        SynchronizationResult result = resumable
+                ? checkpoints.result(checkpoint) : new SynchronizationResult();
+        Map<String, Object> bind = new HashMap<>(params);
+        if (resumable) {
+            String after = checkpoints.after(checkpoint);
+            bind.put(KEY_AFTER, after);
+            if (!after.isEmpty()) {
+                LOG.infov("Resuming sync: component={0}, checkpoint={1}, after={2}",
+                        model.getId(), checkpoint, after);
+            }
+        }
+        try (Connection connection = store.getConnection()) {
+            // PostgreSQL はオートコミットを無効にしないとカーソルで少しずつ取得しない
+            connection.setAutoCommit(false);
+            try (PreparedStatement ps = sql.prepare(connection, bind)) {
+                ps.setFetchSize(fetchSize);
+                try (ResultSet rs = ps.executeQuery()) {
+                    List<UserRecord> batch = new ArrayList<>(batchSize);
+                    long start = System.currentTimeMillis();
+                    long logged = start;
+                    long rows = 0;
+                    while (rs.next()) {
+                        UserRecord record = UserRecord.from(rs);
+                        if (record == null) {
+                            continue;
+                        }
+                        rows++;
+                        batch.add(record);
+                        if (batch.size() >= batchSize) {
+                            String last = record.getUsername();
+                            apply(batch, result);
+                            batch.clear();
+                            long now = System.currentTimeMillis();
+                            if (now - logged >= PROGRESS_INTERVAL) {
+                                logProgress(params, rows, result, now - start);
+                                if (resumable) {
+                                    checkpoints.save(checkpoint, last, result);
+                                }
+                                logged = now;
+                            }
+                        }
+                    }
+                    apply(batch, result);
+                    logProgress(params, rows, result, System.currentTimeMillis() - start);
+                }
+            } finally {
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    /**
+     * SQLの結果をパーティションに分け、複数のスレッドで並列に取り込みます
+     * SQLの ${partitions} にパーティション数、${partition} に 0 から始まるパーティション番号をバインドします
+     * 各スレッドはそれぞれコネクションを借り受け、一定件数ごとに反映します
+     *
+     * @param sql         取り込むユーザを返すSQL
+     * @param partitions  パーティション数(並列数)
+     * @param checkpoints チェックポイントの保存先(再開しない場合はnull)
+     * @return 同期結果
+     */
+    public SynchronizationResult runPartitioned(NamedSql sql, int partitions, SyncCheckpoints checkpoints) {
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(partitions, runnable -> {
+            Thread thread = new Thread(runnable, "database-user-storage-sync-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<SynchronizationResult>> futures = new ArrayList<>(partitions);
+            for (int i = 0; i < partitions; i++) {
+                Map<String, Integer> params = Map.of(KEY_PARTITIONS, partitions, KEY_PARTITION, i);
+                String checkpoint = SyncCheckpoints.key(partitions, i);
+                futures.add(workers.submit(() -> run(sql, params, checkpoints, checkpoint)));
+            }
+            SynchronizationResult result = new SynchronizationResult();
+            RuntimeException failure = null;
+            for (int i = 0; i < partitions; i++) {
+                try {
+                    result.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    LOG.warnv(e.getCause(), "Unable to sync partition {0}/{1}: component={2}",
+                            i, partitions, model.getId());
+                    failure = new RuntimeException(e.getCause());
+                }
+            }
+            // 失敗したパーティションがあれば、前回同期時刻が更新されないように例外とする
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * 同期の進捗と処理速度をログに出力します
+     *
+     * @param params  バインド変数(パーティションの識別用)
+     * @param rows    読み込んだ行数
+     * @param result  同期結果
+     * @param elapsed 経過時間(ミリ秒)
+     */
+    private void logProgress(Map<String, ?> params, long rows, SynchronizationResult result, long elapsed) {
+        LOG.infov("Sync progress: component={0}, params={1}, rows={2}, {3}, {4} users/s",
+                model.getId(), params, rows, result.getStatus(), elapsed == 0 ? rows : rows * 1000L / elapsed);
+    }
+
+    /**
+     * ユーザをまとめて1トランザクションで反映します
+     * 反映に失敗した場合は、原因のユーザを特定するため1件ずつ反映し直します
+     *
+     * @param batch  反映するユーザ
+     * @param result 同期結果
+     */
+    void apply(List<UserRecord> batch, SynchronizationResult result) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        SynchronizationResult partial = new SynchronizationResult();
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                UserProvider local = session.userLocalStorage();
+                for (UserRecord record : batch) {
+                    importUser(local, realm, record, partial);
+                }
+            });
+            result.add(partial);
+        } catch (RuntimeException e) {
+            if (batch.size() == 1) {
+                LOG.warnv(e, "Unable to import user: {0}", batch.get(0).getUsername());
+                result.increaseFailed();
+                return;
+            }
+            LOG.debugv("Batch import failed, retrying one by one: {0}", e.getMessage());
+            for (UserRecord record : batch) {
+                apply(List.of(record), result);
+            }
+            return;
+        }
+        for (UserRecord record : batch) {
+            store.getUserCache().invalidate(store.cacheKey(realmId, record.getUsername()));
+        }
+    }
+
+    /**
+     * 外部DBから削除されたユーザを1トランザクションでローカルストレージから削除します
+     *
+     * @param usernames 削除するユーザ名
+     * @param result    同期結果
+     */
+    void remove(List<String> usernames, SynchronizationResult result) {
+        if (usernames.isEmpty()) {
+            return;
+        }
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            RealmModel realm = session.realms().getRealm(realmId);
+            UserProvider local = session.userLocalStorage();
+            for (String username : usernames) {
+                UserModel user = local.getUserByUsername(username, realm);
+                if (user != null && model.getId().equals(user.getFederationLink())) {
+                    local.removeUser(realm, user);
+                    result.increaseRemoved();
+                }
+            }
+        });
+        for (String username : usernames) {
+            store.getUserCache().invalidate(store.cacheKey(realmId, username));
+        }
+    }
+
+    /**
+     * 1ユーザをローカルストレージに追加または更新します
+     *
+     * @param local  ローカルストレージ
+     * @param realm  レルム
+     * @param record 外部DBのユーザ情報
+     * @param result 同期結果
+     */
+    private void importUser(UserProvider local, RealmModel realm, UserRecord record,
+                            SynchronizationResult result) {
+        UserModel existing = local.getUserByUsername(record.getUsername(), realm);
+        UserModel user;
+        if (existing == null) {
+            user = local.addUser(realm, record.getUsername());
+            user.setFederationLink(model.getId());
+            user.setEnabled(true);
+            result.increaseAdded();
+        } else if (model.getId().equals(existing.getFederationLink())) {
+            user = existing;
+            result.increaseUpdated();
+        } else {
+            // 他のプロバイダやKeycloak上で作成された同名ユーザは上書きしない
+            LOG.warnv("User {0} is not linked to this provider, skipped.", record.getUsername());
+            result.increaseFailed();
+            return;
+        }
+        user.setEmail(record.getEmail());
+        if (bucketDigits > 0) {
+            user.setSingleAttribute(ATTRIBUTE_BUCKET, bucketOf(record.getUsername(), bucketDigits));
+        }
+        if (record.getAttributes() != null) {
+            for (Map.Entry<String, List<String>> attribute : record.getAttributes().entrySet()) {
+                String name = attribute.getKey();
+                List<String> values = attribute.getValue();
+                if (UserModel.FIRST_NAME.equals(name)) {
+                    user.setFirstName(values.isEmpty() ? null : values.get(0));
+                } else if (UserModel.LAST_NAME.equals(name)) {
+                    user.setLastName(values.isEmpty() ? null : values.get(0));
+                } else if (!UserModel.USERNAME.equals(name) && !UserModel.EMAIL.equals(name)) {
+                    user.setAttribute(name, values);
+                }
+            }
+        }
+    }
+}
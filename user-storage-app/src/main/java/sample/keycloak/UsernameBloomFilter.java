@@ -0,0 +1,105 @@
+package sample.keycloak;
+
+import org.jboss.logging.Logger;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Locale;
+
+/**
+ * 外部DBに存在するユーザ名のブルームフィルタを保持し、定期的に作り直します
+ * 作成前や作成に失敗している間は、すべてのユーザ名を「存在するかもしれない」と判定します
+ * 外部DBのユーザ名の照合は大文字小文字を区別しないことが多いため、小文字に正規化して登録・判定します
+ */
+public class UsernameBloomFilter {
+
+    // ロガー
+    private static final Logger LOG = Logger.getLogger(UsernameBloomFilter.class);
+    // 走査時のフェッチサイズ
+    private static final int FETCH_SIZE = 1000;
+    // 全ユーザ名を取得するSQL
+    private final NamedSql sql;
+    // 誤判定率
+    private final double falsePositiveRate;
+    // メモリ上限(バイト)
+    private final long maxBytes;
+    // 現在のフィルタ(作成前はnull)
+    private volatile BloomFilter filter;
+
+    /**
+     * コンストラクタ
+     *
+     * @param sql               全ユーザ名を取得するSQL(1列目がユーザ名)
+     * @param falsePositiveRate 誤判定率
+     * @param maxBytes          メモリ上限(バイト)
+     */
+    public UsernameBloomFilter(NamedSql sql, double falsePositiveRate, long maxBytes) {
+        this.sql = sql;
+        this.falsePositiveRate = falsePositiveRate;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * ユーザ名が外部DBに存在する可能性があるかを判定します
+     *
+     * @param username ユーザ名
+     * @return true:存在するかもしれない<br>false:確実に存在しない
+     */
+    public boolean mightContain(String username) {
+        BloomFilter current = filter;
+        return current == null || current.mightContain(username.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * 外部DBを走査してフィルタを作り直します
+     * 走査中も古いフィルタで判定を続け、完成後に差し替えます
+     *
+     * @param dataSource コネクションプール
+     */
+    public void refresh(DataSource dataSource) {
+        long start = System.currentTimeMillis();
+        try (Connection connection = dataSource.getConnection()) {
+            long expected = count(connection);
+            BloomFilter next = BloomFilter.create(expected, falsePositiveRate, maxBytes);
+            // PostgreSQL はオートコミットを無効にしないとカーソルで少しずつ取得しない
+            connection.setAutoCommit(false);
+            try (PreparedStatement ps = sql.prepare(connection, Collections.emptyMap())) {
+                ps.setFetchSize(FETCH_SIZE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String username = rs.getString(1);
+                        if (username != null) {
+                            next.put(username.toLowerCase(Locale.ROOT));
+                        }
+                    }
+                }
+            } finally {
+                connection.rollback();
+            }
+            filter = next;
+            LOG.debugv("Bloom filter refreshed: users={0}, bytes={1}, hashes={2}, elapsed={3}ms",
+                    expected, next.byteSize(), next.getHashes(), System.currentTimeMillis() - start);
+        } catch (SQLException | RuntimeException e) {
+            LOG.warn("Unable to refresh bloom filter.", e);
+        }
+    }
+
+    /**
+     * フィルタの大きさを決めるためにユーザ数を数えます
+     *
+     * @param connection SQLコネクション
+     * @return ユーザ数
+     * @throws SQLException SQL例外
+     */
+    private long count(Connection connection) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(
+                "select count(*) from (" + sql.getSql() + ") t");
+             ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0L;
+        }
+    }
+}
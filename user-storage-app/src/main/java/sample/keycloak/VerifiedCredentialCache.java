@@ -0,0 +1,128 @@
+package sample.keycloak;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * 照合に成功したパスワードを短時間だけ覚えておくキャッシュ
+ * 同じパスワードで繰り返しログインするクライアントのために、高コストなハッシュ計算を省略します
+ * パスワードそのものは保持せず、プロセスごとの乱数鍵による HMAC(保存済みハッシュ + パスワード)だけを保持します
+ * 保存済みハッシュが変わると HMAC が一致しなくなるため、パスワード変更後に古いパスワードが通ることはありません
+ */
+public class VerifiedCredentialCache {
+
+    // HMAC の方式
+    private static final String ALGORITHM = "HmacSHA256";
+    // プロセスごとの乱数鍵
+    private final SecretKeySpec secret;
+    // スレッドごとの Mac(Mac はスレッドセーフでないため)
+    private final ThreadLocal<Mac> macs;
+    // ユーザごとの照合成功済み HMAC
+    private final Cache<UserCache.Key, byte[]> verified;
+
+    /**
+     * コンストラクタ
+     *
+     * @param maximumSize 最大件数
+     * @param ttl         有効期限
+     */
+    public VerifiedCredentialCache(long maximumSize, Duration ttl) {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        this.secret = new SecretKeySpec(key, ALGORITHM);
+        Arrays.fill(key, (byte) 0);
+        this.macs = ThreadLocal.withInitial(this::newMac);
+        this.verified = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .build();
+    }
+
+    /**
+     * 乱数鍵で初期化した Mac を作成します
+     *
+     * @return Mac
+     */
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(secret);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 保存済みハッシュと入力されたパスワードから HMAC を計算します
+     *
+     * @param encoded  保存済みのハッシュ文字列
+     * @param password 入力されたパスワード
+     * @return HMAC
+     */
+    public byte[] digest(String encoded, char[] password) {
+        Mac mac = macs.get();
+        mac.update(encoded.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+        try {
+            mac.update(bytes.duplicate());
+            return mac.doFinal();
+        } finally {
+            if (bytes.hasArray()) {
+                Arrays.fill(bytes.array(), (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * 照合に成功済みのパスワードかを判定します
+     *
+     * @param key    ユーザのキー
+     * @param digest digest() で計算した HMAC
+     * @return true:成功済み<br>false:未照合、または期限切れ・ハッシュ変更済み
+     */
+    public boolean contains(UserCache.Key key, byte[] digest) {
+        byte[] cached = verified.getIfPresent(key);
+        return cached != null && MessageDigest.isEqual(cached, digest);
+    }
+
+    /**
+     * 照合に成功したパスワードを記録します
+     *
+     * @param key    ユーザのキー
+     * @param digest digest() で計算した HMAC
+     */
+    public void put(UserCache.Key key, byte[] digest) {
+        verified.put(key, digest);
+    }
+
+    /**
+     * 照合に失敗したユーザの記録を破棄します
+     *
+     * @param key ユーザのキー
+     */
+    public void invalidate(UserCache.Key key) {
+        verified.invalidate(key);
+    }
+
+    /**
+     * コンポーネントの記録をすべて破棄します
+     *
+     * @param componentId コンポーネントID
+     */
+    public void invalidateComponent(String componentId) {
+        verified.asMap().keySet().removeIf(key -> key.getComponentId().equals(componentId));
+    }
+}
@@ -0,0 +1,94 @@
+package sample.keycloak;
+
+import org.keycloak.component.ComponentModel;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * ベンチマーク用の組み込みデータベース(H2 の PostgreSQL 互換モード)
+ */
+public final class BenchDatabase implements AutoCloseable {
+
+    /** 接続ユーザ */
+    public static final String USERNAME = "sa";
+    /** 接続パスワード */
+    public static final String PASSWORD = "bench";
+    // 接続URL
+    private final String url;
+    // データベースを保持し続けるためのコネクション
+    private final Connection keepAlive;
+
+    /**
+     * データベースを作成し、ユーザを登録します
+     *
+     * @param name  データベース名
+     * @param users 登録するユーザ数(user0 から連番)
+     * @throws SQLException SQL例外
+     */
+    public BenchDatabase(String name, int users) throws SQLException {
+        this.url = "jdbc:h2:mem:" + name + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE";
+        this.keepAlive = DriverManager.getConnection(url, USERNAME, PASSWORD);
+        try (Statement st = keepAlive.createStatement()) {
+            st.execute("create table users (username varchar(255) primary key)");
+        }
+        keepAlive.setAutoCommit(false);
+        try (PreparedStatement ps = keepAlive.prepareStatement("insert into users values (?)")) {
+            for (int i = 0; i < users; i++) {
+                ps.setString(1, username(i));
+                ps.addBatch();
+                if (i % 1000 == 999) {
+                    ps.executeBatch();
+                }
+            }
+            ps.executeBatch();
+        }
+        keepAlive.commit();
+        keepAlive.setAutoCommit(true);
+    }
+
+    /**
+     * 登録したユーザの名前を返します
+     *
+     * @param index 連番
+     * @return ユーザ名
+     */
+    public static String username(int index) {
+        return "user" + index;
+    }
+
+    /**
+     * このデータベースを参照するプロバイダ設定内容を作成します
+     *
+     * @param id コンポーネントID
+     * @return プロバイダ設定内容
+     */
+    public ComponentModel component(String id) {
+        ComponentModel model = new ComponentModel();
+        model.setId(id);
+        model.setName(id);
+        model.setProviderId("database-user-storage");
+        model.getConfig().putSingle("Url", url);
+        model.getConfig().putSingle("Username", USERNAME);
+        model.getConfig().putSingle("Password", PASSWORD);
+        model.getConfig().putSingle("Sql", "select username from users where username = ${username}");
+        return model;
+    }
+
+    /**
+     * データベースを破棄します
+     *
+     * @throws SQLException SQL例外
+     */
+    @Override
+    public void close() throws SQLException {
+        try (Statement st = keepAlive.createStatement()) {
+            st.execute("shutdown");
+        } finally {
+            keepAlive.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package sample.keycloak;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * ベンチマーク用に Keycloak のインターフェースを最小限だけ実装したスタブ
+ */
+public final class BenchStubs {
+
+    /**
+     * インスタンス化させない
+     */
+    private BenchStubs() {
+    }
+
+    /**
+     * 何もしないセッションを作成します
+     *
+     * @return セッション
+     */
+    public static KeycloakSession session() {
+        return proxy(KeycloakSession.class, Map.of());
+    }
+
+    /**
+     * IDと名前だけを返すレルムを作成します
+     *
+     * @param id レルムID
+     * @return レルム
+     */
+    public static RealmModel realm(String id) {
+        return proxy(RealmModel.class, Map.of("getId", id, "getName", id));
+    }
+
+    /**
+     * SPI設定を作成します
+     * 指定のないキーは呼び出し元の既定値を返します
+     *
+     * @param values 設定値
+     * @return SPI設定
+     */
+    public static Config.Scope scope(Map<String, String> values) {
+        return (Config.Scope) Proxy.newProxyInstance(BenchStubs.class.getClassLoader(),
+                new Class<?>[]{Config.Scope.class}, (proxy, method, args) -> {
+                    if (args == null || args.length == 0 || !(args[0] instanceof String)) {
+                        return defaultValue(method);
+                    }
+                    String value = values.get(args[0]);
+                    Object fallback = args.length > 1 ? args[1] : null;
+                    if (value == null) {
+                        return fallback == null ? defaultValue(method) : fallback;
+                    }
+                    Class<?> type = method.getReturnType();
+                    if (type == Long.class || type == long.class) {
+                        return Long.valueOf(value);
+                    } else if (type == Integer.class || type == int.class) {
+                        return Integer.valueOf(value);
+                    } else if (type == Boolean.class || type == boolean.class) {
+                        return Boolean.valueOf(value);
+                    }
+                    return value;
+                });
+    }
+
+    /**
+     * メソッド名に対応する値だけを返すスタブを作成します
+     *
+     * @param type    インターフェース
+     * @param returns メソッド名と戻り値
+     * @param <T>     インターフェースの型
+     * @return スタブ
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T proxy(Class<T> type, Map<String, Object> returns) {
+        return (T) Proxy.newProxyInstance(BenchStubs.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return type.getSimpleName() + "Stub";
+                        default:
+                            return returns.containsKey(method.getName())
+                                    ? returns.get(method.getName())
+                                    : defaultValue(method);
+                    }
+                });
+    }
+
+    /**
+     * 戻り値の型に応じた既定値を返します
+     *
+     * @param method メソッド
+     * @return 既定値
+     */
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        } else if (type == boolean.class) {
+            return false;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0d;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == char.class) {
+            return '\0';
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == short.class) {
+            return (short) 0;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,201 @@
+package sample.keycloak;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.storage.UserStorageProviderModel;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 同期ベンチマーク用に、Keycloak のローカルユーザストレージをメモリ上で模倣するスタブ
+ * 同期処理が使う範囲(ユーザの追加・検索・削除、属性の設定)だけを実装します
+ */
+public final class BenchUserStore {
+
+    // ユーザ名ごとのユーザ
+    private final Map<String, UserModel> users = new ConcurrentHashMap<>();
+    // 差分同期のバケットごとのユーザ名(属性検索用の索引)
+    private final Map<String, Set<String>> buckets = new ConcurrentHashMap<>();
+    // プロバイダ設定内容(同期処理が保存するダイジェストやチェックポイントを保持する)
+    private final Map<String, ComponentModel> components = new ConcurrentHashMap<>();
+    // レルム
+    private final RealmModel realm;
+
+    /**
+     * コンストラクタ
+     *
+     * @param realmId レルムID
+     */
+    public BenchUserStore(String realmId) {
+        this.realm = (RealmModel) Proxy.newProxyInstance(BenchUserStore.class.getClassLoader(),
+                new Class<?>[]{RealmModel.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId":
+                        case "getName":
+                            return realmId;
+                        case "getComponent":
+                            ComponentModel component = components.get((String) args[0]);
+                            return component == null ? null : new ComponentModel(component);
+                        case "updateComponent":
+                            ComponentModel updated = (ComponentModel) args[0];
+                            components.put(updated.getId(), new ComponentModel(updated));
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /**
+     * プロバイダ設定内容を登録します
+     *
+     * @param component プロバイダ設定内容
+     */
+    public void addComponent(ComponentModel component) {
+        components.put(component.getId(), new ComponentModel(component));
+    }
+
+    /**
+     * 同期処理が保存した内容を含む、最新のプロバイダ設定内容を返します
+     * (Keycloak が同期のたびにデータベースから読み直す設定内容に相当します)
+     *
+     * @param id コンポーネントID
+     * @return プロバイダ設定内容
+     */
+    public UserStorageProviderModel component(String id) {
+        return new UserStorageProviderModel(new ComponentModel(components.get(id)));
+    }
+
+    /**
+     * 登録されているユーザ数を返します
+     *
+     * @return ユーザ数
+     */
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     * 全ユーザを削除します
+     */
+    public void clear() {
+        users.clear();
+        buckets.clear();
+    }
+
+    /**
+     * このストアを使うセッションを作成するセッションファクトリを返します
+     *
+     * @return セッションファクトリ
+     */
+    public KeycloakSessionFactory sessionFactory() {
+        KeycloakSession session = session();
+        return BenchStubs.proxy(KeycloakSessionFactory.class, Map.of("create", session));
+    }
+
+    /**
+     * このストアを使うセッションを作成します
+     *
+     * @return セッション
+     */
+    private KeycloakSession session() {
+        return BenchStubs.proxy(KeycloakSession.class, Map.of(
+                "getTransactionManager", BenchStubs.proxy(KeycloakTransactionManager.class, Map.of()),
+                "realms", BenchStubs.proxy(RealmProvider.class, Map.of("getRealm", realm)),
+                "userLocalStorage", userProvider()));
+    }
+
+    /**
+     * ユーザの追加・検索・削除を行うユーザプロバイダを作成します
+     *
+     * @return ユーザプロバイダ
+     */
+    private UserProvider userProvider() {
+        return (UserProvider) Proxy.newProxyInstance(BenchUserStore.class.getClassLoader(),
+                new Class<?>[]{UserProvider.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getUserByUsername":
+                            return users.get(((String) (args[0] instanceof String ? args[0] : args[1])));
+                        case "addUser":
+                            String username = (String) args[1];
+                            UserModel user = user(username);
+                            users.put(username, user);
+                            return user;
+                        case "removeUser":
+                            UserModel removed = users.remove(((UserModel) args[1]).getUsername());
+                            return removed != null;
+                        case "searchForUserByUserAttribute":
+                            List<UserModel> found = new ArrayList<>();
+                            buckets.getOrDefault((String) args[1], Set.of()).forEach(name -> {
+                                UserModel u = users.get(name);
+                                if (u != null) {
+                                    found.add(u);
+                                }
+                            });
+                            return found;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /**
+     * 値を保持するだけのユーザを作成します
+     *
+     * @param username ユーザ名
+     * @return ユーザ
+     */
+    private UserModel user(String username) {
+        Map<String, Object> fields = new ConcurrentHashMap<>();
+        Map<String, List<String>> attributes = new ConcurrentHashMap<>();
+        fields.put("Username", username);
+        return (UserModel) Proxy.newProxyInstance(BenchUserStore.class.getClassLoader(),
+                new Class<?>[]{UserModel.class}, (proxy, method, args) -> {
+                    String name = method.getName();
+                    if (name.equals("setSingleAttribute")) {
+                        attributes.put((String) args[0], List.of((String) args[1]));
+                        if (UserSynchronizer.ATTRIBUTE_BUCKET.equals(args[0])) {
+                            buckets.computeIfAbsent((String) args[1], k -> ConcurrentHashMap.newKeySet())
+                                    .add(username);
+                        }
+                        return null;
+                    } else if (name.equals("setAttribute")) {
+                        @SuppressWarnings("unchecked")
+                        List<String> values = (List<String>) args[1];
+                        attributes.put((String) args[0], values);
+                        return null;
+                    } else if (name.equals("getAttributes")) {
+                        return attributes;
+                    } else if (name.startsWith("set") && args != null && args.length == 1) {
+                        if (args[0] == null) {
+                            fields.remove(name.substring(3));
+                        } else {
+                            fields.put(name.substring(3), args[0]);
+                        }
+                        return null;
+                    } else if (name.startsWith("get") && args == null) {
+                        return fields.get(name.substring(3));
+                    } else if (name.equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    } else if (name.equals("equals")) {
+                        return proxy == args[0];
+                    }
+                    return method.getReturnType() == boolean.class ? false : null;
+                });
+    }
+}
@@ -0,0 +1,172 @@
+package sample.keycloak;
+
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.generators.OpenBSDBCrypt;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * isValid で照合するパスワードハッシュの方式・コストごとの照合コストを計測するベンチマーク
+ * 1スレッドと全コア数のスレッドで計測します。コアあたりの照合回数は、全コア数の結果をコア数で割って求めてください
+ * p99 レイテンシは sample モードの結果、アロケーション量は GC プロファイラの結果を参照してください
+ */
+@State(Scope.Benchmark)
+public class PasswordHashBenchmark {
+
+    // 照合するパスワード
+    private static final String PASSWORD = "correct horse battery staple";
+
+    /**
+     * 方式とコスト
+     * bcrypt:コスト, pbkdf2-sha256:反復回数, argon2id:メモリ(KiB):反復回数:並列度
+     */
+    @Param({
+            "bcrypt:10",
+            "bcrypt:12",
+            "pbkdf2-sha256:310000",
+            "pbkdf2-sha512:120000",
+            "argon2id:19456:2:1",
+            "argon2id:65536:3:1"
+    })
+    public String spec;
+
+    // 保存済みハッシュ
+    private String encoded;
+    // 方式
+    private PasswordHashAlgorithm algorithm;
+    // 検証用スレッドプール経由の照合
+    private PasswordVerifier verifier;
+
+    /**
+     * 計測する方式のハッシュを作成します
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        encoded = encode(spec, PASSWORD);
+        algorithm = algorithmFor(encoded);
+        int cores = Runtime.getRuntime().availableProcessors();
+        verifier = new PasswordVerifier(cores, cores * 4, 1048576, 60000L, new UserStorageMetrics());
+        if (!algorithm.verify(PASSWORD.toCharArray(), encoded)) {
+            throw new IllegalStateException("Generated hash does not verify: " + spec);
+        }
+    }
+
+    /**
+     * 検証用スレッドプールを停止します
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        verifier.close();
+    }
+
+    /**
+     * 1スレッドでの照合
+     *
+     * @return 照合結果
+     */
+    @Benchmark
+    @Threads(1)
+    public boolean verifySingleThread() {
+        return algorithm.verify(PASSWORD.toCharArray(), encoded);
+    }
+
+    /**
+     * 全コア数のスレッドでの照合
+     *
+     * @return 照合結果
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean verifyAllCores() {
+        return algorithm.verify(PASSWORD.toCharArray(), encoded);
+    }
+
+    /**
+     * 全コア数のスレッドから検証用スレッドプール経由での照合(待ち時間・メモリ上限を含む)
+     *
+     * @return 照合結果
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean verifyThroughExecutor() {
+        return verifier.verify("bench", PASSWORD.toCharArray(), encoded);
+    }
+
+    /**
+     * ハッシュ文字列に対応する方式を返します
+     *
+     * @param encoded ハッシュ文字列
+     * @return 方式
+     */
+    private static PasswordHashAlgorithm algorithmFor(String encoded) {
+        PasswordHashAlgorithm[] algorithms = {
+                new BCryptPasswordHash(), new Pbkdf2PasswordHash(), new Argon2PasswordHash()
+        };
+        for (PasswordHashAlgorithm algorithm : algorithms) {
+            if (algorithm.supports(encoded)) {
+                return algorithm;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported hash: " + encoded);
+    }
+
+    /**
+     * 方式とコストからハッシュ文字列を作成します
+     *
+     * @param spec     方式とコスト
+     * @param password パスワード
+     * @return ハッシュ文字列
+     */
+    static String encode(String spec, String password) {
+        String[] parts = spec.split(":");
+        byte[] salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        if (parts[0].equals("bcrypt")) {
+            return OpenBSDBCrypt.generate("2b", password.toCharArray(), salt, Integer.parseInt(parts[1]));
+        } else if (parts[0].startsWith("pbkdf2-")) {
+            int iterations = Integer.parseInt(parts[1]);
+            String hmac = parts[0].substring("pbkdf2-".length()).toUpperCase(Locale.ROOT);
+            try {
+                byte[] hash = SecretKeyFactory.getInstance("PBKDF2WithHmac" + hmac)
+                        .generateSecret(new PBEKeySpec(password.toCharArray(), salt, iterations, 256))
+                        .getEncoded();
+                return "$" + parts[0] + "$" + iterations + "$" + base64.encodeToString(salt)
+                        + "$" + base64.encodeToString(hash);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        } else if (parts[0].equals("argon2id")) {
+            int memory = Integer.parseInt(parts[1]);
+            int iterations = Integer.parseInt(parts[2]);
+            int parallelism = Integer.parseInt(parts[3]);
+            Argon2BytesGenerator generator = new Argon2BytesGenerator();
+            generator.init(new Argon2Parameters.Builder(Argon2Parameters.ARGON2_id)
+                    .withVersion(Argon2Parameters.ARGON2_VERSION_13)
+                    .withMemoryAsKB(memory)
+                    .withIterations(iterations)
+                    .withParallelism(parallelism)
+                    .withSalt(salt)
+                    .build());
+            byte[] hash = new byte[32];
+            generator.generateBytes(password.getBytes(StandardCharsets.UTF_8), hash);
+            return String.format("$argon2id$v=19$m=%d,t=%d,p=%d$%s$%s", memory, iterations, parallelism,
+                    base64.encodeToString(salt), base64.encodeToString(hash));
+        }
+        throw new IllegalArgumentException("Unknown spec: " + spec);
+    }
+}
@@ -0,0 +1,68 @@
+package sample.keycloak;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Map;
+
+/**
+ * セッションごとに行われるプロバイダ生成のコストを計測するベンチマーク
+ */
+@State(Scope.Benchmark)
+public class ProviderFactoryBenchmark {
+
+    // 組み込みデータベース
+    private BenchDatabase database;
+    // 計測対象のファクトリ
+    private DatabaseUserStorageProviderFactory factory;
+    // プロバイダ設定内容
+    private ComponentModel model;
+    // セッション
+    private KeycloakSession session;
+
+    /**
+     * データベースとファクトリを準備します
+     * コネクションプールの作成は初回だけのため、計測前に済ませておきます
+     *
+     * @throws Exception 準備に失敗した場合の例外
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = new BenchDatabase("factory", 100);
+        factory = new DatabaseUserStorageProviderFactory();
+        factory.init(BenchStubs.scope(Map.of()));
+        factory.postInit(null);
+        model = database.component("bench-factory");
+        session = BenchStubs.session();
+        factory.create(session, model).close();
+    }
+
+    /**
+     * データベースとファクトリを破棄します
+     *
+     * @throws Exception 破棄に失敗した場合の例外
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        factory.close();
+        database.close();
+    }
+
+    /**
+     * プロバイダの生成と解放
+     *
+     * @return 生成したプロバイダ
+     */
+    @Benchmark
+    public DatabaseUserStorageProvider create() {
+        DatabaseUserStorageProvider provider = factory.create(session, model);
+        provider.close();
+        return provider;
+    }
+}
@@ -0,0 +1,166 @@
+package sample.keycloak;
+
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * 同期処理のスループットを計測するベンチマーク
+ * <ul>
+ * <li>full: 全件同期(1スレッド)</li>
+ * <li>parallel: 全件同期(4パーティション並列)</li>
+ * <li>changed: 1%のユーザを更新した後の差分同期(更新日時による)</li>
+ * <li>digest: 1%のユーザを更新した後の差分同期(ダイジェストによる)</li>
+ * </ul>
+ * 1回の同期を1オペレーションとし、処理した行数/秒とピークヒープを補助カウンタとして出力します
+ * GC時間は GC プロファイラの結果を参照してください
+ */
+@State(Scope.Benchmark)
+public class SyncBenchmark {
+
+    /** 計測する同期の種類 */
+    @Param({"full", "parallel", "changed", "digest"})
+    public String mode;
+    /** 外部DBのユーザ数 */
+    @Param({"100000"})
+    public int users;
+    /** 1ユーザあたりの属性のバイト数 */
+    @Param({"512"})
+    public int attributeBytes;
+    // 外部ユーザテーブル
+    private SyncFixture fixture;
+    // Keycloak のローカルユーザストレージのスタブ
+    private BenchUserStore userStore;
+    // セッションファクトリのスタブ
+    private KeycloakSessionFactory sessionFactory;
+    // 計測対象のファクトリ
+    private DatabaseUserStorageProviderFactory factory;
+    // コンポーネントID
+    private String componentId;
+    // 差分同期の前回同期時刻
+    private Date lastSync;
+    // 更新回数
+    private int revision;
+
+    /**
+     * 処理した行数とピークヒープの補助カウンタ
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Rows {
+        /** 同期で処理した行数(行/秒として出力されます) */
+        public long rows;
+    }
+
+    /**
+     * ピークヒープの補助カウンタ
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+        /** 同期中のピークヒープ使用量(MB) */
+        public long peakHeapMb;
+    }
+
+    /**
+     * 外部ユーザテーブルとファクトリを準備します
+     * 差分同期では、計測前に全件同期で取り込みを済ませておきます
+     *
+     * @throws Exception 準備に失敗した場合の例外
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = new SyncFixture("jdbc:h2:mem:sync_" + mode + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE",
+                users, attributeBytes);
+        userStore = new BenchUserStore("bench");
+        sessionFactory = userStore.sessionFactory();
+        factory = new DatabaseUserStorageProviderFactory();
+        factory.init(BenchStubs.scope(Map.of()));
+        factory.postInit(null);
+        componentId = "bench-sync-" + mode;
+        userStore.addComponent("digest".equals(mode)
+                ? fixture.digestComponent(componentId)
+                : fixture.component(componentId, "parallel".equals(mode) ? 4 : 1));
+        if ("changed".equals(mode) || "digest".equals(mode)) {
+            factory.sync(sessionFactory, "bench", userStore.component(componentId));
+            if ("digest".equals(mode)) {
+                // 初回のダイジェストを保存する
+                factory.syncSince(new Date(0L), sessionFactory, "bench", userStore.component(componentId));
+            }
+        }
+    }
+
+    /**
+     * 差分同期の対象となるユーザを更新し、ピークヒープの計測を始めます
+     *
+     * @throws Exception 更新に失敗した場合の例外
+     */
+    @Setup(Level.Invocation)
+    public void prepare() throws Exception {
+        if ("full".equals(mode) || "parallel".equals(mode)) {
+            userStore.clear();
+        } else {
+            lastSync = new Date();
+            Thread.sleep(5L);
+            fixture.touch(0.01, ++revision);
+        }
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * 外部ユーザテーブルとファクトリを破棄します
+     *
+     * @throws Exception 破棄に失敗した場合の例外
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        factory.close();
+        fixture.close();
+    }
+
+    /**
+     * 同期
+     *
+     * @param rows 処理した行数
+     * @param heap ピークヒープ
+     * @return 同期結果
+     */
+    @Benchmark
+    public SynchronizationResult sync(Rows rows, Heap heap) {
+        UserStorageProviderModel model = userStore.component(componentId);
+        SynchronizationResult result;
+        if ("full".equals(mode) || "parallel".equals(mode)) {
+            result = factory.sync(sessionFactory, "bench", model);
+        } else {
+            result = factory.syncSince(lastSync, sessionFactory, "bench", model);
+        }
+        rows.rows += result.getAdded() + result.getUpdated() + result.getRemoved() + result.getFailed();
+        long peak = 0L;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        heap.peakHeapMb = Math.max(heap.peakHeapMb, peak / (1024 * 1024));
+        return result;
+    }
+}
@@ -0,0 +1,230 @@
+package sample.keycloak;
+
+import org.keycloak.component.ComponentModel;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 同期ベンチマーク用の外部ユーザテーブルを作成します(H2 の PostgreSQL 互換モード)
+ * 属性はJSONで、1ユーザあたりおよそ指定したバイト数になるように作成します
+ * 単体で実行すると、ファイルに保存したデータベースを作成します
+ * <pre>
+ * java -cp ... sample.keycloak.SyncFixture ./build/sync-fixture 1000000 512
+ * </pre>
+ */
+public final class SyncFixture implements AutoCloseable {
+
+    // 差分同期のバケットの桁数
+    static final int BUCKET_DIGITS = 3;
+    // 接続URL
+    private final String url;
+    // データベースを保持し続けるためのコネクション
+    private final Connection keepAlive;
+    // 登録したユーザ数
+    private final int users;
+    // 1ユーザあたりの属性のバイト数
+    private final int attributeBytes;
+
+    /**
+     * データベースを作成し、ユーザを登録します
+     *
+     * @param url            接続URL(jdbc:h2:...)
+     * @param users          登録するユーザ数
+     * @param attributeBytes 1ユーザあたりの属性のバイト数
+     * @throws SQLException SQL例外
+     */
+    public SyncFixture(String url, int users, int attributeBytes) throws SQLException {
+        this.url = url;
+        this.users = users;
+        this.attributeBytes = attributeBytes;
+        this.keepAlive = DriverManager.getConnection(url, BenchDatabase.USERNAME, BenchDatabase.PASSWORD);
+        try (Statement st = keepAlive.createStatement()) {
+            st.execute("create table if not exists sync_users ("
+                    + " id int primary key, username varchar(255) not null, email varchar(255),"
+                    + " attributes varchar, updated_at timestamp not null,"
+                    + " bucket char(" + BUCKET_DIGITS + ") not null, row_hash int not null)");
+            st.execute("create unique index if not exists sync_users_username on sync_users (username)");
+            st.execute("create index if not exists sync_users_updated_at on sync_users (updated_at)");
+            st.execute("create index if not exists sync_users_bucket on sync_users (bucket, username)");
+            st.execute("delete from sync_users");
+        }
+        keepAlive.setAutoCommit(false);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        try (PreparedStatement ps = keepAlive.prepareStatement(
+                "insert into sync_users values (?, ?, ?, ?, ?, ?, ?)")) {
+            for (int i = 0; i < users; i++) {
+                String username = username(i);
+                String email = username + "@example.com";
+                String attributes = attributes(i, 0);
+                ps.setInt(1, i);
+                ps.setString(2, username);
+                ps.setString(3, email);
+                ps.setString(4, attributes);
+                ps.setTimestamp(5, now);
+                ps.setString(6, UserSynchronizer.bucketOf(username, BUCKET_DIGITS));
+                ps.setInt(7, rowHash(username, email, attributes));
+                ps.addBatch();
+                if (i % 1000 == 999) {
+                    ps.executeBatch();
+                    keepAlive.commit();
+                }
+            }
+            ps.executeBatch();
+        }
+        keepAlive.commit();
+        keepAlive.setAutoCommit(true);
+    }
+
+    /**
+     * 登録したユーザの名前を返します
+     *
+     * @param index 連番
+     * @return ユーザ名
+     */
+    public static String username(int index) {
+        return String.format("sync%08d", index);
+    }
+
+    /**
+     * 属性のJSONを作成します
+     *
+     * @param index    連番
+     * @param revision 更新回数(値を変えるために使用)
+     * @return 属性のJSON
+     */
+    private String attributes(int index, int revision) {
+        StringBuilder json = new StringBuilder(attributeBytes + 64);
+        json.append("{\"firstName\":\"First").append(index)
+                .append("\",\"lastName\":\"Last").append(index)
+                .append("\",\"department\":\"dept").append(index % 100)
+                .append("\",\"revision\":\"").append(revision)
+                .append("\",\"note\":\"");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (json.length() < attributeBytes - 2) {
+            json.append((char) ('a' + random.nextInt(26)));
+        }
+        return json.append("\"}").toString();
+    }
+
+    /**
+     * 行の内容のハッシュを計算します(差分同期のダイジェストの元になります)
+     *
+     * @param username   ユーザ名
+     * @param email      メールアドレス
+     * @param attributes 属性のJSON
+     * @return 行のハッシュ
+     */
+    private static int rowHash(String username, String email, String attributes) {
+        return (username + "\0" + email + "\0" + attributes).hashCode();
+    }
+
+    /**
+     * 指定した割合のユーザを更新します(差分同期の計測用)
+     *
+     * @param ratio    更新するユーザの割合
+     * @param revision 更新回数
+     * @return 更新したユーザ数
+     * @throws SQLException SQL例外
+     */
+    public int touch(double ratio, int revision) throws SQLException {
+        int count = (int) Math.max(1, users * ratio);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        keepAlive.setAutoCommit(false);
+        try (PreparedStatement ps = keepAlive.prepareStatement(
+                "update sync_users set attributes = ?, updated_at = ?, row_hash = ? where id = ?")) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int n = 0; n < count; n++) {
+                int i = random.nextInt(users);
+                String attributes = attributes(i, revision);
+                ps.setString(1, attributes);
+                ps.setTimestamp(2, now);
+                ps.setInt(3, rowHash(username(i), username(i) + "@example.com", attributes));
+                ps.setInt(4, i);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        keepAlive.commit();
+        keepAlive.setAutoCommit(true);
+        return count;
+    }
+
+    /**
+     * このデータベースを参照するプロバイダ設定内容を作成します
+     *
+     * @param id          コンポーネントID
+     * @param parallelism 全件同期の並列数
+     * @return プロバイダ設定内容
+     */
+    public ComponentModel component(String id, int parallelism) {
+        ComponentModel model = new ComponentModel();
+        model.setId(id);
+        model.setName(id);
+        model.setProviderId("database-user-storage");
+        model.getConfig().putSingle("Url", url);
+        model.getConfig().putSingle("Username", BenchDatabase.USERNAME);
+        model.getConfig().putSingle("Password", BenchDatabase.PASSWORD);
+        model.getConfig().putSingle("Sql", "select username from sync_users where username = ${username}");
+        model.getConfig().putSingle("PoolSize", String.valueOf(parallelism + 2));
+        model.getConfig().putSingle("SyncParallelism", String.valueOf(parallelism));
+        model.getConfig().putSingle("SyncSql", parallelism > 1
+                ? "select username, email, attributes from sync_users where mod(id, ${partitions}) = ${partition}"
+                : "select username, email, attributes from sync_users");
+        model.getConfig().putSingle("ChangedSql",
+                "select username, email, attributes from sync_users where updated_at >= ${since}");
+        // 前回の反復で更新した行を読み直さないよう、差分同期の重なりをなくす
+        model.getConfig().putSingle("SyncOverlap", "0");
+        return model;
+    }
+
+    /**
+     * ダイジェストによる差分同期を使うプロバイダ設定内容を作成します
+     *
+     * @param id コンポーネントID
+     * @return プロバイダ設定内容
+     */
+    public ComponentModel digestComponent(String id) {
+        ComponentModel model = component(id, 1);
+        model.getConfig().remove("ChangedSql");
+        model.getConfig().putSingle("BucketDigits", String.valueOf(BUCKET_DIGITS));
+        model.getConfig().putSingle("DigestSql",
+                "select bucket, cast(sum(cast(row_hash as bigint)) as varchar) from sync_users group by bucket");
+        model.getConfig().putSingle("BucketSql",
+                "select username, email, attributes from sync_users where bucket = ${bucket} order by lower(username)");
+        return model;
+    }
+
+    /**
+     * データベースを閉じます
+     *
+     * @throws SQLException SQL例外
+     */
+    @Override
+    public void close() throws SQLException {
+        keepAlive.close();
+    }
+
+    /**
+     * ファイルに保存したデータベースを作成します
+     *
+     * @param args 保存先、ユーザ数、1ユーザあたりの属性のバイト数
+     * @throws SQLException SQL例外
+     */
+    public static void main(String[] args) throws SQLException {
+        String path = args.length > 0 ? args[0] : "./build/sync-fixture";
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        int attributeBytes = args.length > 2 ? Integer.parseInt(args[2]) : 512;
+        long start = System.currentTimeMillis();
+        try (SyncFixture fixture = new SyncFixture(
+                "jdbc:h2:file:" + path + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE", users, attributeBytes)) {
+            System.out.printf("Created %d users in %s (%d ms)%n",
+                    users, path, System.currentTimeMillis() - start);
+        }
+    }
+}
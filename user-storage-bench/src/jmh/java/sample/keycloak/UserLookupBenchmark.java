@@ -0,0 +1,147 @@
+package sample.keycloak;
+
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.storage.StorageId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * ユーザ検索の主要経路を計測するベンチマーク
+ * Keycloak と同じく検索ごと(セッションごと)にプロバイダを作成するため、
+ * セッション内のメモではなく共有キャッシュ・DBの性能を計測します
+ * <ul>
+ * <li>cold: キャッシュを無効にし、毎回DBを検索する</li>
+ * <li>warm: 全ユーザをキャッシュ済みの状態で検索する</li>
+ * <li>miss: 存在しないユーザ名ばかりを検索する</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+public class UserLookupBenchmark {
+
+    /** 計測する負荷の種類 */
+    @Param({"cold", "warm", "miss"})
+    public String workload;
+    /** 登録ユーザ数 */
+    @Param({"10000"})
+    public int users;
+    // 組み込みデータベース
+    private BenchDatabase database;
+    // 計測対象のファクトリ
+    private DatabaseUserStorageProviderFactory factory;
+    // プロバイダ設定内容
+    private ComponentModel model;
+    // レルム
+    private RealmModel realm;
+    // セッション
+    private KeycloakSession session;
+    // 存在しないユーザ名の連番
+    private final AtomicInteger missing = new AtomicInteger();
+
+    /**
+     * データベースとプロバイダを準備します
+     *
+     * @throws Exception 準備に失敗した場合の例外
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = new BenchDatabase("lookup_" + workload, users);
+        factory = new DatabaseUserStorageProviderFactory();
+        factory.init(BenchStubs.scope("cold".equals(workload)
+                ? Map.of("userCacheMaxSize", "0")
+                : Map.of("userCacheMaxSize", String.valueOf(users * 2))));
+        factory.postInit(null);
+        model = database.component("bench-" + workload);
+        realm = BenchStubs.realm("bench");
+        session = BenchStubs.session();
+        if ("warm".equals(workload)) {
+            for (int i = 0; i < users; i++) {
+                String username = BenchDatabase.username(i);
+                inSession(provider -> provider.getUserByUsername(username, realm));
+            }
+        }
+    }
+
+    /**
+     * データベースとプロバイダを破棄します
+     *
+     * @throws Exception 破棄に失敗した場合の例外
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        factory.close();
+        database.close();
+    }
+
+    /**
+     * 負荷の種類に応じた検索対象のユーザ名を返します
+     *
+     * @return ユーザ名
+     */
+    private String nextUsername() {
+        if ("miss".equals(workload)) {
+            return "missing" + missing.incrementAndGet();
+        }
+        return BenchDatabase.username(ThreadLocalRandom.current().nextInt(users));
+    }
+
+    /**
+     * セッションごとのプロバイダを作成して処理を実行し、終了後にプロバイダを閉じます
+     *
+     * @param action 処理
+     * @return 処理結果
+     */
+    private UserModel inSession(Function<DatabaseUserStorageProvider, UserModel> action) {
+        DatabaseUserStorageProvider provider = factory.create(session, model);
+        try {
+            return action.apply(provider);
+        } finally {
+            provider.close();
+        }
+    }
+
+    /**
+     * ユーザ名による検索
+     *
+     * @return 検索結果
+     */
+    @Benchmark
+    public UserModel getUserByUsername() {
+        String username = nextUsername();
+        return inSession(provider -> provider.getUserByUsername(username, realm));
+    }
+
+    /**
+     * ユーザIDによる検索
+     *
+     * @return 検索結果
+     */
+    @Benchmark
+    public UserModel getUserById() {
+        String id = StorageId.keycloakId(model, nextUsername());
+        return inSession(provider -> provider.getUserById(id, realm));
+    }
+
+    /**
+     * 認証用ユーザ情報の作成
+     *
+     * @return 認証用ユーザ情報
+     */
+    @Benchmark
+    public UserModel createAdapter() {
+        String username = nextUsername();
+        return inSession(provider -> provider.createAdapter(username, realm));
+    }
+}